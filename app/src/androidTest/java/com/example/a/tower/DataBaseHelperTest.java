@@ -0,0 +1,210 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The migrations of DataBaseHelper on a copy of the asset database, version 1, with a few
+ * samples recorded before the upgrade.
+ */
+public class DataBaseHelperTest extends AndroidTestCase {
+    private static final String DB_NAME = "migration_test.sqlite";
+    private static final String STEPWISE_DB_NAME = "migration_stepwise_test.sqlite";
+    private static final int LATEST_VERSION = 8;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(STEPWISE_DB_NAME);
+        // copyDataBase() writes the file itself
+        getContext().getDatabasePath(DB_NAME).getParentFile().mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DB_NAME);
+        getContext().deleteDatabase(STEPWISE_DB_NAME);
+        super.tearDown();
+    }
+
+    public void testCopyDeletesStaleLog() throws Exception {
+        File path = getContext().getDatabasePath(DB_NAME);
+        // the log of another database, replayed over the copy it would corrupt it
+        File wal = new File(path.getPath() + "-wal");
+        File shm = new File(path.getPath() + "-shm");
+        writeGarbage(wal);
+        writeGarbage(shm);
+
+        new DataBaseHelper(getContext(), DB_NAME).copyDataBase();
+        assertFalse(wal.exists());
+        assertFalse(shm.exists());
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            assertEquals(1, db.getVersion());
+            assertEquals(2391, count(db, "SELECT COUNT(*) FROM " + TowerConstant.registeredStationTable));
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testUpgradeFromAsset() throws Exception {
+        DataBaseHelper helper = new DataBaseHelper(getContext(), DB_NAME);
+        helper.copyDataBase();
+        recordSamples(DB_NAME);
+
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(LATEST_VERSION, db.getVersion());
+            assertTrue(db.isWriteAheadLoggingEnabled());
+            assertEquals("wal", string(db, "PRAGMA journal_mode"));
+            assertUpgraded(db);
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testUpgradeOneVersionAtATime() throws Exception {
+        DataBaseHelper helper = new DataBaseHelper(getContext(), STEPWISE_DB_NAME);
+        helper.copyDataBase();
+        recordSamples(STEPWISE_DB_NAME);
+
+        SQLiteDatabase db = open(STEPWISE_DB_NAME);
+        try {
+            for (int version = 2; version <= LATEST_VERSION; version++) {
+                // as SQLiteOpenHelper does, in one transaction with the new version
+                db.beginTransaction();
+                try {
+                    helper.onUpgrade(db, version - 1, version);
+                    db.setVersion(version);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                assertEquals(version, count(db, "SELECT MAX(version) FROM " + TowerConstant.schemaHistoryTable));
+            }
+            assertUpgraded(db);
+        } finally {
+            db.close();
+        }
+
+        // the same schema as the upgrade in one go
+        DataBaseHelper oneGo = new DataBaseHelper(getContext(), DB_NAME);
+        oneGo.copyDataBase();
+        recordSamples(DB_NAME);
+        try {
+            db = open(STEPWISE_DB_NAME);
+            try {
+                assertEquals(schemaOf(oneGo.getWritableDatabase()), schemaOf(db));
+            } finally {
+                db.close();
+            }
+        } finally {
+            oneGo.close();
+        }
+    }
+
+    // two days of history of one cell and the cell and tower detected, in the version 1 columns
+    private void recordSamples(String name) {
+        SQLiteDatabase db = open(name);
+        try {
+            String history = "INSERT INTO " + TowerConstant.cellSignalHistoryTable
+                    + " (IMEI, MCC, MNC, LAC, CID, RSS, time, gps_lat, gps_lon, net_type) VALUES ";
+            db.execSQL(history + "('imei', 460, 1, 1, 11, -70, '20160501103000', 30.50, 114.30, 1)");
+            db.execSQL(history + "('imei', 460, 1, 1, 11, -80, '20160501113000', 30.52, 114.34, 1)");
+            db.execSQL(history + "('imei', 460, 1, 1, 11, -90, '20160502090000', 30.51, 114.32, 1)");
+            db.execSQL("INSERT INTO " + TowerConstant.detectedCellTable
+                    + " (IMEI, MCC, MNC, LAC, TOWER, CID, time_first, time_last, gps_lat, gps_lon, net_type)"
+                    + " VALUES ('imei', 460, 1, 1, 1, 11, '20160501103000', '20160502090000', 30.51, 114.32, 1)");
+            db.execSQL("INSERT INTO " + TowerConstant.detectedTowerTable
+                    + " (IMEI, MCC, MNC, LAC, TOWER, time_first, time_last, gps_lat, gps_lon, net_type)"
+                    + " VALUES ('imei', 460, 1, 1, 1, '20160501103000', '20160502090000', 30.51, 114.32, 1)");
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void assertUpgraded(SQLiteDatabase db) {
+        assertEquals(LATEST_VERSION - 1, count(db, "SELECT COUNT(*) FROM " + TowerConstant.schemaHistoryTable));
+        assertEquals(2391, count(db, "SELECT COUNT(*) FROM " + TowerConstant.registeredStationTable));
+
+        // the history moved to one partition per day, none rolled up yet
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = '"
+                + TowerConstant.cellSignalHistoryTable + "'"));
+        assertEquals(2, count(db, "SELECT COUNT(*) FROM " + TowerConstant.historyPartitionTable));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + TowerConstant.historyPartitionTable
+                + " WHERE rolled_up != 0 OR rolled_up_id != 0"));
+        assertEquals(2, count(db, "SELECT COUNT(*) FROM " + SignalHistory.tableOf(20160501)));
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM " + SignalHistory.tableOf(20160502)));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM " + SignalHistory.tableOf(20160501)
+                + " WHERE typeof(time) != 'integer' OR serving != 1"));
+
+        // the area of the cell and its tower from the three samples, the times in epoch milliseconds
+        for (String table : new String[]{TowerConstant.detectedCellTable, TowerConstant.detectedTowerTable}) {
+            Cursor cursor = db.rawQuery("SELECT samples, min_lat, max_lat, gps_lat, gps_lon, typeof(time_first) FROM " + table, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(3, cursor.getInt(0));
+                assertEquals(30.50, cursor.getDouble(1), 1e-9);
+                assertEquals(30.52, cursor.getDouble(2), 1e-9);
+                assertEquals(30.51, cursor.getDouble(3), 1e-9);
+                assertEquals(114.32, cursor.getDouble(4), 1e-9);
+                assertEquals("integer", cursor.getString(5));
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private SQLiteDatabase open(String name) {
+        return SQLiteDatabase.openDatabase(getContext().getDatabasePath(name).getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    }
+
+    private static List<String> schemaOf(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master ORDER BY type, name", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1) + ": " + cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    private static long count(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String string(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeGarbage(File file) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        } finally {
+            out.close();
+        }
+    }
+}
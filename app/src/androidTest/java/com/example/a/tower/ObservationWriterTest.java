@@ -0,0 +1,195 @@
+package com.example.a.tower;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The batching, dropping and flushing of ObservationWriter over an adapter that only records
+ * the batches it is given.
+ */
+public class ObservationWriterTest extends AndroidTestCase {
+    private static final int FLUSH_SAMPLES = 16;
+    private static final int QUEUE_CAPACITY = 512;
+    private static final long TIMEOUT = 3000;
+
+    // the sizes of the batches written, throws while fail is set, with entered set it waits for release
+    private static class RecordingAdapter extends DataBaseAdapter {
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile boolean fail;
+        volatile CountDownLatch entered;
+        volatile CountDownLatch release;
+        volatile CountDownLatch calls = new CountDownLatch(0);
+
+        RecordingAdapter(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void recordFixes(List<CellFix> fixes, String imei, TowerPositions towers) {
+            // read before the call is counted, the test may clear it right after
+            boolean failing = fail;
+            calls.countDown();
+            if (entered != null) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new RuntimeException("database is locked");
+            }
+            batches.add(fixes.size());
+        }
+    }
+
+    private static class RecordingListener implements ObservationWriter.Listener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        volatile CountDownLatch flushed = new CountDownLatch(1);
+
+        @Override
+        public void onStarted() {
+            events.add("started");
+        }
+
+        @Override
+        public void onFlushed(int count, TowerPositions towers) {
+            events.add("flushed " + count);
+            flushed.countDown();
+        }
+    }
+
+    private RecordingAdapter mAdapter;
+    private RecordingListener mListener;
+    private ObservationWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAdapter = new RecordingAdapter(getContext());
+        mListener = new RecordingListener();
+        mWriter = new ObservationWriter(mAdapter, mListener);
+    }
+
+    public void testBatchesOfFlushSamples() throws Exception {
+        mListener.flushed = new CountDownLatch(3);
+        mWriter.start();
+        for (int i = 0; i < 40; i++) {
+            assertTrue(mWriter.offer(fix(i)));
+        }
+        // the last 8 are written at once rather than after FLUSH_INTERVAL
+        mWriter.requestFlush();
+        assertTrue(mListener.flushed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        mWriter.shutdown();
+
+        assertEquals(list(16, 16, 8), mAdapter.batches);
+        assertEquals(list("started", "flushed 16", "flushed 16", "flushed 8"), mListener.events);
+        assertEquals(40, mWriter.getWrittenCount());
+        assertEquals(3, mWriter.getFlushCount());
+        assertEquals(0, mWriter.getDroppedCount());
+    }
+
+    public void testShutdownWritesWhatIsQueued() throws Exception {
+        mWriter.start();
+        for (int i = 0; i < 5; i++) {
+            mWriter.offer(fix(i));
+        }
+        mWriter.shutdown();
+        assertEquals(list(5), mAdapter.batches);
+        assertEquals(5, mWriter.getWrittenCount());
+
+        // stopped, nothing more is taken
+        assertFalse(mWriter.offer(fix(5)));
+        assertEquals(1, mWriter.getDroppedCount());
+    }
+
+    public void testFullQueueDropsTheOldest() throws Exception {
+        mAdapter.entered = new CountDownLatch(1);
+        mAdapter.release = new CountDownLatch(1);
+        mWriter.start();
+        // the writer holds the first batch, blocked in the db
+        for (int i = 0; i < FLUSH_SAMPLES; i++) {
+            mWriter.offer(fix(i));
+        }
+        assertTrue(mAdapter.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // a flush request is dropped first, without being counted
+        mWriter.requestFlush();
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            assertTrue(mWriter.offer(fix(FLUSH_SAMPLES + i)));
+        }
+        assertEquals(QUEUE_CAPACITY, mWriter.getQueueDepth());
+        assertEquals(0, mWriter.getDroppedCount());
+        for (int i = 0; i < 10; i++) {
+            assertFalse(mWriter.offer(fix(FLUSH_SAMPLES + QUEUE_CAPACITY + i)));
+        }
+        assertEquals(10, mWriter.getDroppedCount());
+        assertEquals(QUEUE_CAPACITY, mWriter.getQueueDepth());
+
+        mAdapter.release.countDown();
+        mWriter.shutdown();
+        assertEquals(FLUSH_SAMPLES + QUEUE_CAPACITY, mWriter.getWrittenCount());
+        assertEquals(10, mWriter.getDroppedCount());
+    }
+
+    public void testFailedBatchIsRetriedThenDropped() throws Exception {
+        mAdapter.fail = true;
+        mAdapter.calls = new CountDownLatch(3);
+        mWriter.start();
+        for (int i = 0; i < FLUSH_SAMPLES; i++) {
+            mWriter.offer(fix(i));
+        }
+        // each flush request is one more attempt, the third one drops the batch
+        mWriter.requestFlush();
+        mWriter.requestFlush();
+        assertTrue(mAdapter.calls.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the writer keeps running
+        mAdapter.fail = false;
+        for (int i = 0; i < FLUSH_SAMPLES; i++) {
+            mWriter.offer(fix(FLUSH_SAMPLES + i));
+        }
+        assertTrue(mListener.flushed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        mWriter.shutdown();
+
+        assertEquals(list(FLUSH_SAMPLES), mAdapter.batches);
+        assertEquals(3, mWriter.getFailedFlushCount());
+        assertEquals(FLUSH_SAMPLES, mWriter.getDroppedCount());
+        assertEquals(FLUSH_SAMPLES, mWriter.getWrittenCount());
+        assertEquals(1, mWriter.getFlushCount());
+    }
+
+    public void testWrittenFixesAreReused() throws Exception {
+        mWriter.start();
+        for (int round = 0; round < 4; round++) {
+            mListener.flushed = new CountDownLatch(1);
+            for (int i = 0; i < FLUSH_SAMPLES; i++) {
+                CellFix fix = mWriter.obtainFix();
+                assertTrue(fix.isReusable());
+                mWriter.offer(fix);
+            }
+            assertTrue(mListener.flushed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        mWriter.shutdown();
+        assertEquals(4 * FLUSH_SAMPLES, mWriter.getWrittenCount());
+        assertEquals(FLUSH_SAMPLES, mWriter.getAllocatedFixes());
+    }
+
+    private static CellFix fix(int i) {
+        return new CellFix(1462069800000L + i * 1000L, 30.5, 114.3, Collections.<Cell>emptyList());
+    }
+
+    @SafeVarargs
+    private static <T> List<T> list(T... items) {
+        List<T> list = new ArrayList<>();
+        Collections.addAll(list, items);
+        return list;
+    }
+}
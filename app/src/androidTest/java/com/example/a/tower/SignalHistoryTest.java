@@ -0,0 +1,198 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The rollups of SignalHistory.maintain() on an in-memory db, the samples of a day written
+ * after its rollup are merged by rolled_up_id.
+ */
+public class SignalHistoryTest extends TestCase {
+    private static final int RETENTION_DAYS = 7;
+
+    private SQLiteDatabase mDb;
+    private StatementCache mStatements;
+    private SignalHistory.Partition mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mStatements = open(mDb);
+        mToday = SignalHistory.partitionOf(mStatements, System.currentTimeMillis());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStatements.close();
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testLateSamplesMatchOneRollup() throws Exception {
+        long day = timeOf(2, 0);
+        SignalHistory.Partition partition = SignalHistory.partitionOf(mStatements, day);
+        Random random = new Random(7);
+        List<Object[]> samples = randomSamples(random, day, 300);
+
+        // written in three batches, each one rolled up before the next
+        recordAll(mStatements, partition, samples.subList(0, 100));
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        assertEquals(100, rolledUpSamples(mDb));
+        recordAll(mStatements, partition, samples.subList(100, 250));
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        recordAll(mStatements, partition, samples.subList(250, 300));
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        assertEquals(300, rolledUpId(mDb, partition.day));
+
+        // the same samples rolled up at once
+        SQLiteDatabase oneGo = SQLiteDatabase.create(null);
+        StatementCache statements = open(oneGo);
+        try {
+            SignalHistory.Partition today = SignalHistory.partitionOf(statements, System.currentTimeMillis());
+            recordAll(statements, SignalHistory.partitionOf(statements, day), samples);
+            SignalHistory.maintain(statements, today, RETENTION_DAYS);
+            assertEquals(rollupsOf(oneGo), rollupsOf(mDb));
+        } finally {
+            statements.close();
+            oneGo.close();
+        }
+    }
+
+    public void testMaintainWithoutNewSamplesChangesNothing() throws Exception {
+        long day = timeOf(1, 0);
+        SignalHistory.Partition partition = SignalHistory.partitionOf(mStatements, day);
+        recordAll(mStatements, partition, randomSamples(new Random(3), day, 50));
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        List<String> rollups = rollupsOf(mDb);
+
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        assertEquals(rollups, rollupsOf(mDb));
+        assertEquals(50, rolledUpSamples(mDb));
+    }
+
+    public void testTodayIsNotRolledUp() throws Exception {
+        record(mStatements, mToday, 11, 1, -70, System.currentTimeMillis(), 30.5, 114.3);
+        SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS);
+        assertEquals(0, rolledUpSamples(mDb));
+        assertEquals(0, rolledUpId(mDb, mToday.day));
+    }
+
+    public void testSampleOfADroppedDayIsMerged() throws Exception {
+        long day = timeOf(RETENTION_DAYS + 2, 10);
+        SignalHistory.Partition partition = SignalHistory.partitionOf(mStatements, day);
+        record(mStatements, partition, 11, 1, -70, day, 30.50, 114.30);
+        record(mStatements, partition, 11, 1, -80, day + 60000, 30.52, 114.34);
+        assertEquals(1, SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS));
+        assertEquals(2, rolledUpSamples(mDb));
+
+        // a late sample, its day comes back empty and goes again
+        partition = SignalHistory.partitionOf(mStatements, day);
+        assertEquals(0, rolledUpId(mDb, partition.day));
+        record(mStatements, partition, 11, 1, -90, day + 120000, 30.48, 114.32);
+        assertEquals(1, SignalHistory.maintain(mStatements, mToday, RETENTION_DAYS));
+
+        Cursor cursor = mDb.rawQuery("SELECT samples, min_rss, avg_rss, max_rss, min_lat, max_lat, sum_lat FROM "
+                + TowerConstant.signalRollupTable, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getInt(0));
+            assertEquals(-90, cursor.getDouble(1), 1e-9);
+            assertEquals(-80, cursor.getDouble(2), 1e-9);
+            assertEquals(-70, cursor.getDouble(3), 1e-9);
+            assertEquals(30.48, cursor.getDouble(4), 1e-9);
+            assertEquals(30.52, cursor.getDouble(5), 1e-9);
+            assertEquals(91.5, cursor.getDouble(6), 1e-9);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // the catalog as DataBaseHelper leaves it after its migrations
+    private static StatementCache open(SQLiteDatabase db) {
+        SignalHistory.createCatalog(db);
+        db.execSQL("ALTER TABLE " + TowerConstant.historyPartitionTable + " ADD COLUMN rolled_up_id INTEGER DEFAULT 0");
+        return new StatementCache(db);
+    }
+
+    // the hour of the day some days before today, local time
+    private long timeOf(int daysAgo, int hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(mToday.start);
+        calendar.add(Calendar.DAY_OF_MONTH, -daysAgo);
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        return calendar.getTimeInMillis();
+    }
+
+    // {CID, serving, RSS, time, lat, lon} of two cells over the first hours of the day
+    private static List<Object[]> randomSamples(Random random, long day, int count) {
+        List<Object[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(new Object[]{11 + random.nextInt(2), random.nextInt(2), -50 - random.nextInt(60),
+                    day + random.nextInt(4 * 3600000), 30.5 + random.nextDouble() * 0.1, 114.3 + random.nextDouble() * 0.1});
+        }
+        return samples;
+    }
+
+    private static void recordAll(StatementCache statements, SignalHistory.Partition partition, List<Object[]> samples) {
+        for (Object[] sample : samples) {
+            record(statements, partition, (Integer) sample[0], (Integer) sample[1], (Integer) sample[2],
+                    (Long) sample[3], (Double) sample[4], (Double) sample[5]);
+        }
+    }
+
+    private static void record(StatementCache statements, SignalHistory.Partition partition, int cid, int serving,
+                               int rss, long time, double lat, double lon) {
+        statements.getDatabase().execSQL("INSERT INTO " + partition.table
+                + " (IMEI, MCC, MNC, LAC, CID, RSS, time, gps_lat, gps_lon, net_type, serving)"
+                + " VALUES ('imei', 460, 0, 1, ?, ?, ?, ?, ?, 1, ?)", new Object[]{cid, rss, time, lat, lon, serving});
+    }
+
+    private static List<String> rollupsOf(SQLiteDatabase db) {
+        List<String> rollups = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT hour, MCC, MNC, LAC, CID, serving, net_type, samples, min_rss, avg_rss,"
+                + " max_rss, min_lat, max_lat, min_lon, max_lon, sum_lat, sum_lon FROM " + TowerConstant.signalRollupTable
+                + " ORDER BY hour, MCC, MNC, LAC, CID, serving", null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    // the sums and averages are added up in another order
+                    row.append(String.format(Locale.US, "%.6f ", cursor.getDouble(i)));
+                }
+                rollups.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        assertFalse(rollups.isEmpty());
+        return rollups;
+    }
+
+    private static long rolledUpSamples(SQLiteDatabase db) {
+        return longOf(db, "SELECT TOTAL(samples) FROM " + TowerConstant.signalRollupTable);
+    }
+
+    private static long rolledUpId(SQLiteDatabase db, int day) {
+        return longOf(db, "SELECT rolled_up_id FROM " + TowerConstant.historyPartitionTable + " WHERE day = " + day);
+    }
+
+    private static long longOf(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.a.tower;
+
+import android.os.CancellationSignal;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * StationTileCache over a list of positions, against a linear scan of the same list.
+ */
+public class StationTileCacheTest extends TestCase {
+
+    // the positions as {lat, lon}, the queries are counted
+    private static class Source implements StationTileCache.Source<double[]> {
+        final List<double[]> positions = new ArrayList<>();
+        int queries;
+
+        @Override
+        public List<double[]> query(double south, double north, double west, double east, CancellationSignal signal) {
+            queries++;
+            List<double[]> items = new ArrayList<>();
+            for (double[] position : positions) {
+                if (position[0] >= south && position[0] < north && position[1] >= west && position[1] < east) {
+                    items.add(position);
+                }
+            }
+            return items;
+        }
+
+        @Override
+        public double getLat(double[] item) {
+            return item[0];
+        }
+
+        @Override
+        public double getLon(double[] item) {
+            return item[1];
+        }
+    }
+
+    private static final Comparator<double[]> BY_POSITION = new Comparator<double[]>() {
+        @Override
+        public int compare(double[] a, double[] b) {
+            int lat = Double.compare(a[0], b[0]);
+            return lat != 0 ? lat : Double.compare(a[1], b[1]);
+        }
+    };
+
+    public void testGetMatchesLinearScan() throws Exception {
+        Random random = new Random(11);
+        Source source = new Source();
+        for (int i = 0; i < 5000; i++) {
+            source.positions.add(new double[]{30 + random.nextDouble(), 114 + random.nextDouble()});
+        }
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 2000);
+        for (int q = 0; q < 300; q++) {
+            float zoom = 10 + random.nextInt(9);
+            double size = 0.5 / (1 << (int) (zoom - 10));
+            double south = 30 + random.nextDouble() * (1 - size);
+            double west = 114 + random.nextDouble() * (1 - size);
+            List<double[]> expected = scan(source.positions, south, south + size, west, west + size);
+            List<double[]> actual = cache.get(south, south + size, west, west + size, zoom, null);
+            assertEquals(sorted(expected), sorted(actual));
+        }
+        assertTrue(cache.getTileHits() > 0);
+    }
+
+    public void testSecondGetReadsNoTile() throws Exception {
+        Source source = new Source();
+        source.positions.add(new double[]{30.5, 114.3});
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 100);
+        assertEquals(1, cache.get(30.4, 30.6, 114.2, 114.4, 14, null).size());
+        assertEquals(1, source.queries);
+        long misses = cache.getTileMisses();
+
+        assertEquals(1, cache.get(30.4, 30.6, 114.2, 114.4, 14, null).size());
+        assertEquals(1, source.queries);
+        assertEquals(misses, cache.getTileMisses());
+        // a new station is not seen until its tile is dropped
+        source.positions.add(new double[]{30.45, 114.25});
+        assertEquals(1, cache.get(30.4, 30.6, 114.2, 114.4, 14, null).size());
+    }
+
+    public void testInvalidateArea() throws Exception {
+        Source source = new Source();
+        source.positions.add(new double[]{30.5, 114.3});
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 100);
+        cache.get(30.4, 30.6, 114.2, 114.4, 14, null);
+
+        // elsewhere, the tiles stay
+        cache.invalidate(39.8, 40.0, 116.3, 116.5);
+        cache.get(30.4, 30.6, 114.2, 114.4, 14, null);
+        assertEquals(1, source.queries);
+
+        source.positions.add(new double[]{30.45, 114.25});
+        cache.invalidate(30.44, 30.46, 114.24, 114.26);
+        assertEquals(2, cache.get(30.4, 30.6, 114.2, 114.4, 14, null).size());
+        assertEquals(2, source.queries);
+    }
+
+    public void testInvalidateAreaAtTheFinestBandEdge() throws Exception {
+        // the largest tile coordinates of the finest band, the x and y of the key must not overlap
+        Source source = new Source();
+        source.positions.add(new double[]{89.9999, 179.9999});
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 100);
+        float zoom = StationClusterer.MAX_ZOOM;
+        assertEquals(1, cache.get(89.9998, 90, 179.9998, 180, zoom, null).size());
+
+        source.positions.add(new double[]{89.99995, 179.99995});
+        cache.invalidate(89.99994, 89.99996, 179.99994, 179.99996);
+        assertEquals(2, cache.get(89.9998, 90, 179.9998, 180, zoom, null).size());
+        assertEquals(2, source.queries);
+    }
+
+    public void testInvalidatePositionsOfAllBands() throws Exception {
+        Source source = new Source();
+        source.positions.add(new double[]{30.5, 114.3});
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 1000);
+        cache.get(30.4, 30.6, 114.2, 114.4, 12, null);
+        cache.get(30.49, 30.51, 114.29, 114.31, 17, null);
+        assertEquals(2, source.queries);
+
+        // a tower moved to a new position
+        source.positions.get(0)[0] = 30.502;
+        TowerPositions positions = new TowerPositions();
+        positions.add(30.5, 114.3);
+        positions.add(30.502, 114.3);
+        cache.invalidate(positions);
+        assertEquals(30.502, cache.get(30.4, 30.6, 114.2, 114.4, 12, null).get(0)[0], 0);
+        assertEquals(30.502, cache.get(30.49, 30.51, 114.29, 114.31, 17, null).get(0)[0], 0);
+        assertEquals(4, source.queries);
+
+        cache.invalidate(new TowerPositions());
+        cache.get(30.4, 30.6, 114.2, 114.4, 12, null);
+        assertEquals(4, source.queries);
+    }
+
+    public void testLeastRecentlyUsedTilesAreEvicted() throws Exception {
+        Source source = new Source();
+        // 50 stations in each of two places
+        for (int i = 0; i < 50; i++) {
+            source.positions.add(new double[]{30.5 + i * 1e-5, 114.3});
+            source.positions.add(new double[]{39.9 + i * 1e-5, 116.4});
+        }
+        // room for the tiles of one place only
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 80);
+        cache.get(30.49, 30.51, 114.29, 114.31, 16, null);
+        cache.get(39.89, 39.91, 116.39, 116.41, 16, null);
+        assertEquals(2, source.queries);
+
+        cache.get(39.89, 39.91, 116.39, 116.41, 16, null);
+        assertEquals(2, source.queries);
+        assertEquals(50, cache.get(30.49, 30.51, 114.29, 114.31, 16, null).size());
+        assertEquals(3, source.queries);
+    }
+
+    public void testLargeViewportIsNotCached() throws Exception {
+        Source source = new Source();
+        source.positions.add(new double[]{30.5, 114.3});
+        StationTileCache<double[]> cache = new StationTileCache<>(source, 1000);
+        // far more than MAX_QUERY_TILES tiles at this zoom
+        assertEquals(1, cache.get(20, 40, 100, 130, 16, null).size());
+        assertEquals(1, cache.get(20, 40, 100, 130, 16, null).size());
+        assertEquals(2, source.queries);
+        assertEquals(0, cache.getTileMisses());
+    }
+
+    // the positions strictly inside the bounds
+    private static List<double[]> scan(List<double[]> positions, double south, double north, double west, double east) {
+        List<double[]> result = new ArrayList<>();
+        for (double[] position : positions) {
+            if (position[0] > south && position[0] < north && position[1] > west && position[1] < east) {
+                result.add(position);
+            }
+        }
+        return result;
+    }
+
+    private static List<double[]> sorted(List<double[]> positions) {
+        List<double[]> result = new ArrayList<>(positions);
+        Collections.sort(result, BY_POSITION);
+        return result;
+    }
+}
@@ -198,6 +198,50 @@ public class Cell implements Parcelable {
         this.timestamp = timestamp;
     }
 
+    // copy, so that a queued observation is not changed by later updates of the original
+    public Cell(Cell other) {
+        copyFrom(other);
+    }
+
+    public void copyFrom(Cell other) {
+        this.cid = other.cid;
+        this.lac = other.lac;
+        this.mcc = other.mcc;
+        this.mnc = other.mnc;
+        this.dbm = other.dbm;
+        this.psc = other.psc;
+        this.rssi = other.rssi;
+        this.timingAdvance = other.timingAdvance;
+        this.sid = other.sid;
+        this.timestamp = other.timestamp;
+        this.netType = other.netType;
+        this.speed = other.speed;
+        this.accuracy = other.accuracy;
+        this.bearing = other.bearing;
+        this.lon = other.lon;
+        this.lat = other.lat;
+    }
+
+    // back to the values of new Cell(), for reused cells
+    public void reset() {
+        cid = Integer.MAX_VALUE;
+        lac = Integer.MAX_VALUE;
+        mcc = Integer.MAX_VALUE;
+        mnc = Integer.MAX_VALUE;
+        dbm = Integer.MAX_VALUE;
+        psc = Integer.MAX_VALUE;
+        rssi = Integer.MAX_VALUE;
+        timingAdvance = Integer.MAX_VALUE;
+        sid = Integer.MAX_VALUE;
+        netType = Integer.MAX_VALUE;
+        timestamp = 0;
+        lon = 0.0;
+        lat = 0.0;
+        speed = 0.0;
+        accuracy = 0.0;
+        bearing = 0.0;
+    }
+
     /**
      * Set Primary Scrambling Code (PSC) of current Cell
      *
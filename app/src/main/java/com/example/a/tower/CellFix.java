@@ -0,0 +1,111 @@
+package com.example.a.tower;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * All cells visible at one GPS fix, the serving cell first.
+ * Every cell carries the position and time of the fix. Without a registered cell the
+ * fix is not serving and its first cell is a neighbour like the others.
+ *
+ * Fixes are reused through ObservationWriter.obtainFix(), set() copies a CellSnapshot into
+ * the Cell objects the fix already owns.
+ */
+@Getter
+public class CellFix {
+
+    /**
+     * Time of the fix, also used as the fix id in CELLSIGNALHISTROY
+     */
+    private long time;
+
+    private double lat;
+
+    private double lon;
+
+    /**
+     * Whether the first cell is the registered serving cell
+     */
+    private boolean serving;
+
+    /**
+     * Whether the cells were sampled between fixes at the last position, they are recorded
+     * in the signal history but not in the area aggregates
+     */
+    private boolean radioOnly;
+
+    /**
+     * Serving cell first, then the neighbouring cells
+     */
+    private final List<Cell> cells;
+
+    // the Cell objects owned by a reusable fix, cells is a view of the first ones
+    @Getter(AccessLevel.NONE)
+    private final List<Cell> mCellPool;
+
+    // a reusable fix, filled by set()
+    public CellFix() {
+        this.cells = new ArrayList<>(CellSnapshot.MAX_CELLS);
+        this.mCellPool = new ArrayList<>(CellSnapshot.MAX_CELLS);
+    }
+
+    public CellFix(long time, double lat, double lon, List<Cell> cells) {
+        this.cells = cells;
+        this.mCellPool = null;
+        this.serving = !cells.isEmpty();
+        setPosition(time, lat, lon);
+    }
+
+    /**
+     * Fill a reusable fix with the cells of a snapshot, or with the fallback cell, the serving
+     * cell of the device, if the snapshot is empty.
+     */
+    public void set(long time, double lat, double lon, CellSnapshot snapshot, Cell fallback, boolean radioOnly) {
+        cells.clear();
+        this.radioOnly = radioOnly;
+        if (snapshot.isEmpty()) {
+            pooledCell(0).copyFrom(fallback);
+            cells.add(mCellPool.get(0));
+            serving = true;
+        } else {
+            serving = snapshot.hasServingCell();
+            for (int i = 0; i < snapshot.size(); i++) {
+                Cell cell = pooledCell(i);
+                snapshot.copyTo(i, cell);
+                cells.add(cell);
+            }
+        }
+        setPosition(time, lat, lon);
+    }
+
+    public Cell getServingCell() {
+        return cells.get(0);
+    }
+
+    // created by CellFix(), may go back to the pool of the ObservationWriter
+    public boolean isReusable() {
+        return mCellPool != null;
+    }
+
+    private Cell pooledCell(int i) {
+        while (mCellPool.size() <= i) {
+            mCellPool.add(new Cell());
+        }
+        return mCellPool.get(i);
+    }
+
+    private void setPosition(long time, double lat, double lon) {
+        this.time = time;
+        this.lat = lat;
+        this.lon = lon;
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            cell.setLat(lat);
+            cell.setLon(lon);
+            cell.setTimestamp(time);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.a.tower;
+
+/**
+ * The cells visible at one refresh of the CellTracker, the serving cell first, kept in primitive
+ * columns so that a refresh does not allocate. Without a registered cell (no service, or a
+ * device that reports neighbours only) hasServingCell() is false and row 0 is a neighbour.
+ *
+ * CellTracker fills two snapshots in turn and publishes the one just filled, a published snapshot
+ * is not written again before the next-but-one refresh. Readers must not keep a snapshot across
+ * refreshes: the thread that refreshed may read the returned snapshot until it refreshes again,
+ * any other thread copies the rows out (copyTo) while holding the lock of the CellTracker. The
+ * refreshes take it too, so the rows are not reused mid-copy and need no version check.
+ */
+public class CellSnapshot {
+    public static final int MAX_CELLS = 32;
+
+    private volatile long version;
+    private long time;
+    private int count;
+    private boolean servingCell;
+
+    private final int[] cid = new int[MAX_CELLS];
+    private final int[] lac = new int[MAX_CELLS];
+    private final int[] mcc = new int[MAX_CELLS];
+    private final int[] mnc = new int[MAX_CELLS];
+    private final int[] dbm = new int[MAX_CELLS];
+    private final int[] psc = new int[MAX_CELLS];
+    private final int[] timingAdvance = new int[MAX_CELLS];
+    private final int[] sid = new int[MAX_CELLS];
+    private final int[] netType = new int[MAX_CELLS];
+
+    // 0 while the snapshot is being filled
+    public long getVersion() {
+        return version;
+    }
+
+    // System.currentTimeMillis() of the refresh
+    public long getTime() {
+        return time;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // whether row 0 is the registered serving cell
+    public boolean hasServingCell() {
+        return servingCell;
+    }
+
+    public int getCid(int i) {
+        return cid[i];
+    }
+
+    public int getLac(int i) {
+        return lac[i];
+    }
+
+    public int getMcc(int i) {
+        return mcc[i];
+    }
+
+    public int getMnc(int i) {
+        return mnc[i];
+    }
+
+    public int getDbm(int i) {
+        return dbm[i];
+    }
+
+    public int getPsc(int i) {
+        return psc[i];
+    }
+
+    public int getNetType(int i) {
+        return netType[i];
+    }
+
+    // same rule as Cell.getTowerId()
+    public int getTowerId(int i) {
+        return cid[i] > 0 ? cid[i] / 10 : 0;
+    }
+
+    /**
+     * Copy row i into a (reused) Cell, the position and time of the cell are reset.
+     */
+    public void copyTo(int i, Cell cell) {
+        cell.reset();
+        cell.setCid(cid[i]);
+        cell.setLac(lac[i]);
+        cell.setMcc(mcc[i]);
+        cell.setMnc(mnc[i]);
+        cell.setDbm(dbm[i]);
+        cell.setPsc(psc[i]);
+        cell.setTimingAdvance(timingAdvance[i]);
+        cell.setSid(sid[i]);
+        cell.setNetType(netType[i]);
+        cell.setTimestamp(time);
+    }
+
+    // writer side, used by CellTracker only
+
+    void begin(long time) {
+        this.version = 0;
+        this.time = time;
+        this.count = 0;
+        this.servingCell = false;
+    }
+
+    /**
+     * Prepare the next row with every value unknown.
+     * @return the row, or -1 if the snapshot is full
+     */
+    int newRow() {
+        if (count == MAX_CELLS) {
+            return -1;
+        }
+        int i = count;
+        cid[i] = Integer.MAX_VALUE;
+        lac[i] = Integer.MAX_VALUE;
+        mcc[i] = Integer.MAX_VALUE;
+        mnc[i] = Integer.MAX_VALUE;
+        dbm[i] = Integer.MAX_VALUE;
+        psc[i] = Integer.MAX_VALUE;
+        timingAdvance[i] = Integer.MAX_VALUE;
+        sid[i] = Integer.MAX_VALUE;
+        netType[i] = Integer.MAX_VALUE;
+        return i;
+    }
+
+    void setIdentity(int i, int cid, int lac, int mcc, int mnc) {
+        this.cid[i] = cid;
+        this.lac[i] = lac;
+        this.mcc[i] = mcc;
+        this.mnc[i] = mnc;
+    }
+
+    void setSignal(int i, int netType, int dbm) {
+        this.netType[i] = netType;
+        this.dbm[i] = dbm;
+    }
+
+    void setPsc(int i, int psc) {
+        this.psc[i] = psc == -1 ? Integer.MAX_VALUE : psc;
+    }
+
+    void setTimingAdvance(int i, int timingAdvance) {
+        this.timingAdvance[i] = timingAdvance;
+    }
+
+    void setSid(int i, int sid) {
+        this.sid[i] = sid;
+    }
+
+    /**
+     * Keep the row prepared by newRow() if it identifies a cell, the serving cell is moved first.
+     */
+    void commitRow(int i, boolean serving) {
+        if (cid[i] == Integer.MAX_VALUE || lac[i] == Integer.MAX_VALUE) {
+            return;
+        }
+        count++;
+        if (serving) {
+            servingCell = true;
+            if (i > 0) {
+                swap(0, i);
+            }
+        }
+    }
+
+    void publish(long version) {
+        this.version = version;
+    }
+
+    private void swap(int a, int b) {
+        swap(cid, a, b);
+        swap(lac, a, b);
+        swap(mcc, a, b);
+        swap(mnc, a, b);
+        swap(dbm, a, b);
+        swap(psc, a, b);
+        swap(timingAdvance, a, b);
+        swap(sid, a, b);
+        swap(netType, a, b);
+    }
+
+    private static void swap(int[] column, int a, int b) {
+        int t = column[a];
+        column[a] = column[b];
+        column[b] = t;
+    }
+}
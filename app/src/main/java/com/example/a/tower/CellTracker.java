@@ -19,7 +19,6 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -32,6 +31,10 @@ public class CellTracker {
     private static TelephonyManager tm;
     private PhoneStateListener mPhoneStateListener;
     private static Context context;
+    // filled in turn, see CellSnapshot
+    private final CellSnapshot[] mSnapshots = {new CellSnapshot(), new CellSnapshot()};
+    private long mSnapshotVersion;
+    private volatile CellSnapshot mSnapshot = mSnapshots[1];
 
     public CellTracker(Context context) {
         this.context = context;
@@ -49,86 +52,121 @@ public class CellTracker {
         mDevice.refreshDeviceInfo(tm, context);
     }
 
-    public List<Cell> getAllCells() {
-        int lCurrentApiVersion = android.os.Build.VERSION.SDK_INT;
-        List<Cell> allCells = new ArrayList<>();
+    /**
+     * Ask the TelephonyManager for the visible cells and publish them as the current snapshot.
+     * The returned snapshot is valid until the next-but-one refresh, see CellSnapshot.
+     */
+    public CellSnapshot refreshSnapshot() {
+        return refreshSnapshot(queryCellInfo());
+    }
+
+    /**
+     * Publish the cells of a CellInfo list already at hand, e.g. the one delivered by
+     * PhoneStateListener.onCellInfoChanged, without asking the TelephonyManager again.
+     * The two snapshots are reused in turn, nothing is allocated here. Synchronized on the
+     * tracker, readers on other threads copy a snapshot under the same lock.
+     */
+    public synchronized CellSnapshot refreshSnapshot(List<CellInfo> cellInfoList) {
+        CellSnapshot snapshot = mSnapshots[(int) (mSnapshotVersion & 1)];
+        snapshot.begin(System.currentTimeMillis());
         try {
-            List<CellInfo> cellInfoList = tm.getAllCellInfo();
             if (cellInfoList != null) {
-                for (final CellInfo info : cellInfoList) {
-                    Cell cell = new Cell();
-                    //Network Type
-                    //cell.setNetType(tm.getNetworkType());
-                    if (info instanceof CellInfoGsm) {
-                        cell.setNetType(TelephonyManager.NETWORK_TYPE_GPRS);
-                        final CellSignalStrengthGsm gsm = ((CellInfoGsm) info).getCellSignalStrength();
-                        final CellIdentityGsm identityGsm = ((CellInfoGsm) info).getCellIdentity();
-                        // Signal Strength
-                        cell.setDbm(gsm.getDbm()); // [dBm]
-                        // Cell Identity
-                        cell.setCid(identityGsm.getCid());
-                        cell.setMcc(identityGsm.getMcc());
-                        cell.setMnc(identityGsm.getMnc());
-                        cell.setLac(identityGsm.getLac());
-
-                    } else if (info instanceof CellInfoCdma) {
-                        cell.setNetType(TelephonyManager.NETWORK_TYPE_CDMA);
-                        final CellSignalStrengthCdma cdma = ((CellInfoCdma) info).getCellSignalStrength();
-                        final CellIdentityCdma identityCdma = ((CellInfoCdma) info).getCellIdentity();
-                        // Signal Strength
-                        cell.setDbm(cdma.getDbm());
-                        // Cell Identity
-                        cell.setCid(identityCdma.getBasestationId());
-                        cell.setMnc(identityCdma.getSystemId());
-                        cell.setLac(identityCdma.getNetworkId());
-                        cell.setSid(identityCdma.getSystemId());
+                for (int i = 0; i < cellInfoList.size(); i++) {
+                    readCellInfo(cellInfoList.get(i), snapshot);
+                }
+            }
+        } catch (NullPointerException npe) {
+            Log.d("", "loadCellInfo: Unable to obtain cell signal information: ", npe);
+        }
+        snapshot.publish(++mSnapshotVersion);
+        mSnapshot = snapshot;
+        return snapshot;
+    }
 
-                    } else if (info instanceof CellInfoLte) {
-                        cell.setNetType(TelephonyManager.NETWORK_TYPE_LTE);
-                        final CellSignalStrengthLte lte = ((CellInfoLte) info).getCellSignalStrength();
-                        final CellIdentityLte identityLte = ((CellInfoLte) info).getCellIdentity();
-                        // Signal Strength
-                        cell.setDbm(lte.getDbm());
-                        cell.setTimingAdvance(lte.getTimingAdvance());
-                        // Cell Identity
-                        cell.setMcc(identityLte.getMcc());
-                        cell.setMnc(identityLte.getMnc());
-                        cell.setCid(identityLte.getCi());
-                        cell.setLac(identityLte.getTac());
-                    } else if  (lCurrentApiVersion >= Build.VERSION_CODES.JELLY_BEAN_MR2 && info instanceof CellInfoWcdma) {
-                        // wcdma is NETWORK_TYPE_CDMA ?
-                        cell.setNetType(TelephonyManager.NETWORK_TYPE_CDMA);
-                        final CellSignalStrengthWcdma wcdma = ((CellInfoWcdma) info).getCellSignalStrength();
-                        final CellIdentityWcdma identityWcdma = ((CellInfoWcdma) info).getCellIdentity();
-                        // Signal Strength
-                        cell.setDbm(wcdma.getDbm());
-                        // Cell Identity
-                        cell.setLac(identityWcdma.getLac());
-                        cell.setMcc(identityWcdma.getMcc());
-                        cell.setMnc(identityWcdma.getMnc());
-                        cell.setCid(identityWcdma.getCid());
-                        cell.setPsc(identityWcdma.getPsc());
+    // the last published snapshot, may be empty
+    public CellSnapshot getSnapshot() {
+        return mSnapshot;
+    }
 
-                    } else {
-                        cell.setNetType(TelephonyManager.NETWORK_TYPE_UNKNOWN);
-                        Log.d("", "Unknown type of cell signal!"
-                                + "\n ClassName: " + info.getClass().getSimpleName()
-                                + "\n ToString: " + info.toString());
-                    }
-                    if (cell.isValid()) {
-                        allCells.add(cell);
-                    }
-                    /*
-                    else {
-                        // just for test
-                        allCells.add(cell);
-                    }
-                    */
-                }
+    /**
+     * Copy the cells of the current snapshot, the serving cell first, no telephony call. The
+     * Cells of the array are reused, the missing ones are created.
+     * @param out at least CellSnapshot.MAX_CELLS long
+     * @return the number of cells copied
+     */
+    public synchronized int copyCells(Cell[] out) {
+        CellSnapshot snapshot = mSnapshot;
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (out[i] == null) {
+                out[i] = new Cell();
             }
+            snapshot.copyTo(i, out[i]);
+        }
+        return snapshot.size();
+    }
+
+    private List<CellInfo> queryCellInfo() {
+        try {
+            return tm.getAllCellInfo();
         } catch (NullPointerException npe) {
             Log.d("", "loadCellInfo: Unable to obtain cell signal information: ", npe);
+            return null;
+        }
+    }
+
+    private static void readCellInfo(CellInfo info, CellSnapshot snapshot) {
+        int row = snapshot.newRow();
+        if (row < 0) {
+            return;
+        }
+        //Network Type
+        //cell.setNetType(tm.getNetworkType());
+        if (info instanceof CellInfoGsm) {
+            final CellSignalStrengthGsm gsm = ((CellInfoGsm) info).getCellSignalStrength();
+            final CellIdentityGsm identityGsm = ((CellInfoGsm) info).getCellIdentity();
+            // Signal Strength [dBm]
+            snapshot.setSignal(row, TelephonyManager.NETWORK_TYPE_GPRS, gsm.getDbm());
+            // Cell Identity
+            snapshot.setIdentity(row, identityGsm.getCid(), identityGsm.getLac(),
+                    identityGsm.getMcc(), identityGsm.getMnc());
+
+        } else if (info instanceof CellInfoCdma) {
+            final CellSignalStrengthCdma cdma = ((CellInfoCdma) info).getCellSignalStrength();
+            final CellIdentityCdma identityCdma = ((CellInfoCdma) info).getCellIdentity();
+            // Signal Strength
+            snapshot.setSignal(row, TelephonyManager.NETWORK_TYPE_CDMA, cdma.getDbm());
+            // Cell Identity, no MCC for CDMA
+            snapshot.setIdentity(row, identityCdma.getBasestationId(), identityCdma.getNetworkId(),
+                    Integer.MAX_VALUE, identityCdma.getSystemId());
+            snapshot.setSid(row, identityCdma.getSystemId());
+
+        } else if (info instanceof CellInfoLte) {
+            final CellSignalStrengthLte lte = ((CellInfoLte) info).getCellSignalStrength();
+            final CellIdentityLte identityLte = ((CellInfoLte) info).getCellIdentity();
+            // Signal Strength
+            snapshot.setSignal(row, TelephonyManager.NETWORK_TYPE_LTE, lte.getDbm());
+            snapshot.setTimingAdvance(row, lte.getTimingAdvance());
+            // Cell Identity
+            snapshot.setIdentity(row, identityLte.getCi(), identityLte.getTac(),
+                    identityLte.getMcc(), identityLte.getMnc());
+        } else if  (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && info instanceof CellInfoWcdma) {
+            // wcdma is NETWORK_TYPE_CDMA ?
+            final CellSignalStrengthWcdma wcdma = ((CellInfoWcdma) info).getCellSignalStrength();
+            final CellIdentityWcdma identityWcdma = ((CellInfoWcdma) info).getCellIdentity();
+            // Signal Strength
+            snapshot.setSignal(row, TelephonyManager.NETWORK_TYPE_CDMA, wcdma.getDbm());
+            // Cell Identity
+            snapshot.setIdentity(row, identityWcdma.getCid(), identityWcdma.getLac(),
+                    identityWcdma.getMcc(), identityWcdma.getMnc());
+            snapshot.setPsc(row, identityWcdma.getPsc());
+
+        } else {
+            snapshot.setSignal(row, TelephonyManager.NETWORK_TYPE_UNKNOWN, Integer.MAX_VALUE);
+            Log.d("", "Unknown type of cell signal!"
+                    + "\n ClassName: " + info.getClass().getSimpleName()
+                    + "\n ToString: " + info.toString());
         }
-        return allCells;
+        // keep the serving cell first, it is the one recorded as detected cell/tower, if any
+        snapshot.commitRow(row, info.isRegistered());
     }
 }
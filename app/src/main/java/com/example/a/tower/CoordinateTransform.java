@@ -0,0 +1,88 @@
+package com.example.a.tower;
+
+/**
+ * Conversion between the GPS coordinates (WGS-84) stored in the db and the coordinates of the
+ * Baidu map (BD-09).
+ *
+ * WGS-84 is first shifted to the Chinese GCJ-02 datum, then to BD-09. Outside China the
+ * coordinates are not shifted. The stations are converted once when they are read from the db
+ * and keep their map position, only the corners of the viewport are converted back per query.
+ * Plain arithmetic, safe on any thread.
+ */
+public class CoordinateTransform {
+    // Krasovsky 1940, the ellipsoid of GCJ-02
+    private static final double A = 6378245.0;
+    private static final double EE = 0.00669342162296594323;
+    private static final double X_PI = Math.PI * 3000.0 / 180.0;
+    // iterations of the inverse, each one gains about two orders of magnitude
+    private static final int INVERSE_ITERATIONS = 4;
+
+    private CoordinateTransform() {
+    }
+
+    /**
+     * @param out receives the BD-09 latitude and longitude
+     */
+    public static void wgs84ToBd09(double lat, double lon, double[] out) {
+        if (outOfChina(lat, lon)) {
+            out[0] = lat;
+            out[1] = lon;
+            return;
+        }
+        // WGS-84 to GCJ-02
+        double x = lon - 105.0;
+        double y = lat - 35.0;
+        double dLat = transformLat(x, y);
+        double dLon = transformLon(x, y);
+        double radLat = lat / 180.0 * Math.PI;
+        double magic = Math.sin(radLat);
+        magic = 1 - EE * magic * magic;
+        double sqrtMagic = Math.sqrt(magic);
+        dLat = (dLat * 180.0) / ((A * (1 - EE)) / (magic * sqrtMagic) * Math.PI);
+        dLon = (dLon * 180.0) / (A / sqrtMagic * Math.cos(radLat) * Math.PI);
+        double gcjLat = lat + dLat;
+        double gcjLon = lon + dLon;
+
+        // GCJ-02 to BD-09
+        double z = Math.sqrt(gcjLon * gcjLon + gcjLat * gcjLat) + 0.00002 * Math.sin(gcjLat * X_PI);
+        double theta = Math.atan2(gcjLat, gcjLon) + 0.000003 * Math.cos(gcjLon * X_PI);
+        out[0] = z * Math.sin(theta) + 0.006;
+        out[1] = z * Math.cos(theta) + 0.0065;
+    }
+
+    /**
+     * The inverse of wgs84ToBd09, by fixed point iteration, to well below a meter.
+     * @param out receives the WGS-84 latitude and longitude
+     */
+    public static void bd09ToWgs84(double lat, double lon, double[] out) {
+        double wgsLat = lat;
+        double wgsLon = lon;
+        for (int i = 0; i < INVERSE_ITERATIONS; i++) {
+            wgs84ToBd09(wgsLat, wgsLon, out);
+            wgsLat -= out[0] - lat;
+            wgsLon -= out[1] - lon;
+        }
+        out[0] = wgsLat;
+        out[1] = wgsLon;
+    }
+
+    private static boolean outOfChina(double lat, double lon) {
+        return lon < 72.004 || lon > 137.8347 || lat < 0.8293 || lat > 55.8271;
+    }
+
+    private static double transformLat(double x, double y) {
+        double ret = -100.0 + 2.0 * x + 3.0 * y + 0.2 * y * y + 0.1 * x * y + 0.2 * Math.sqrt(Math.abs(x));
+        ret += (20.0 * Math.sin(6.0 * x * Math.PI) + 20.0 * Math.sin(2.0 * x * Math.PI)) * 2.0 / 3.0;
+        ret += (20.0 * Math.sin(y * Math.PI) + 40.0 * Math.sin(y / 3.0 * Math.PI)) * 2.0 / 3.0;
+        ret += (160.0 * Math.sin(y / 12.0 * Math.PI) + 320 * Math.sin(y * Math.PI / 30.0)) * 2.0 / 3.0;
+        return ret;
+    }
+
+    private static double transformLon(double x, double y) {
+        double ret = 300.0 + x + 2.0 * y + 0.1 * x * x + 0.1 * x * y + 0.1 * Math.sqrt(Math.abs(x));
+        ret += (20.0 * Math.sin(6.0 * x * Math.PI) + 20.0 * Math.sin(2.0 * x * Math.PI)) * 2.0 / 3.0;
+        ret += (20.0 * Math.sin(x * Math.PI) + 40.0 * Math.sin(x / 3.0 * Math.PI)) * 2.0 / 3.0;
+        ret += (150.0 * Math.sin(x / 12.0 * Math.PI) + 300.0 * Math.sin(x / 30.0 * Math.PI)) * 2.0 / 3.0;
+        return ret;
+    }
+}
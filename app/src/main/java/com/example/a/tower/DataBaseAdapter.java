@@ -7,14 +7,20 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.util.Log;
 
@@ -24,13 +30,120 @@ import au.com.bytecode.opencsv.CSVWriter;
 
 /**
  * Created by a on 2016/4/12.
+ *
+ * The database is in WAL mode. All writes go through the one writer connection of the pool,
+ * in transactions of the ObservationWriter thread and the history maintenance. Queries outside
+ * a transaction, the map, the lists and the export, run on the read connections of the pool
+ * against the last committed snapshot, so they neither wait for nor hold up the survey inserts.
  */
 public class DataBaseAdapter {
     protected static final String TAG = "DataBaseAdapter";
 
+    // yyyyMMddHHmmss <-- this format is needed for OCID upload. SimpleDateFormat is not thread safe,
+    // one per thread instead of one per call
+    private static final ThreadLocal<SimpleDateFormat> TIME_STAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault());
+        }
+    };
+    // the epoch millisecond columns, formatted with getTimeStamp() on export
+    private static final List<String> TIME_COLUMNS = Arrays.asList("time", "time_first", "time_last", "hour");
+
     private final Context mContext;
     private SQLiteDatabase mDb;
     private DataBaseHelper mDbHelper;
+    // whether the station tables have R*Tree indexes, see DataBaseHelper.createSpatialIndex()
+    private boolean mSpatialIndexed;
+    // the compiled statements and the timing of every statement
+    private StatementCache mStatements;
+    // SQL of the viewport queries by table, strict and half open, projected to the columns
+    // the map reads, built once in open()
+    private final Map<String, String[]> mScopeSql = new HashMap<>();
+
+    // compiled statements of the observation write path, see recordFixes(), kept in mStatements
+    // mInsertSignalStmt writes to the day partition mSignalPartition, see SignalHistory
+    private SQLiteStatement mInsertSignalStmt;
+    private String mInsertSignalSql;
+    private SignalHistory.Partition mSignalPartition;
+    private SQLiteStatement mUpdateCellStmt;
+    private SQLiteStatement mInsertCellStmt;
+    private SQLiteStatement mUpdateTowerStmt;
+    private SQLiteStatement mInsertTowerStmt;
+    // the arguments of TOWER_AREA_SQL, reused from fix to fix on the writer thread
+    private final String[] mTowerArgs = new String[2];
+    // end of the day the history was last maintained on, or the time of the next attempt after a failure
+    private long mHistoryMaintainedUntil;
+    // maintenance failures in a row, the wait before the next attempt doubles with each
+    private int mHistoryFailures;
+    private static final long HISTORY_RETRY_DELAY = 15 * 60 * 1000;
+    private static final int MAX_HISTORY_RETRY_SHIFT = 5;
+
+    // O(1) update of the area aggregates with the observation at (?4, ?5).
+    // The right hand sides all see the old values, so gps_lat/gps_lon get the new bbox center.
+    private static final String AREA_AGGREGATE_UPDATE =
+            " min_lat = MIN(min_lat, ?4), max_lat = MAX(max_lat, ?4),"
+            + " min_lon = MIN(min_lon, ?5), max_lon = MAX(max_lon, ?5),"
+            + " sum_lat = sum_lat + ?4, sum_lon = sum_lon + ?5, samples = samples + 1,"
+            + " gps_lat = (MIN(min_lat, ?4) + MAX(max_lat, ?4)) / 2,"
+            + " gps_lon = (MIN(min_lon, ?5) + MAX(max_lon, ?5)) / 2";
+
+    private static final String INSERT_SIGNAL_SQL = "INSERT INTO %s"
+            + " (IMEI, MCC, MNC, LAC, CID, RSS, time, gps_lat, gps_lon, net_type, serving, fix_id)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // the cell is placed at the center of the area where it has been observed,
+    // the area is kept up to date from its running min/max aggregates
+    private static final String UPDATE_CELL_SQL = "UPDATE " + TowerConstant.detectedCellTable
+            + " SET time_last = ?1," + AREA_AGGREGATE_UPDATE
+            + " WHERE LAC = ?2 AND CID = ?3";
+
+    private static final String INSERT_CELL_SQL = "INSERT INTO " + TowerConstant.detectedCellTable
+            + " (IMEI, MCC, MNC, LAC, TOWER, CID, PSC, T3212, A5x, ST_id, time_first, time_last, gps_lat, gps_lon, net_type,"
+            + " min_lat, max_lat, min_lon, max_lon, sum_lat, sum_lon, samples)"
+            + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, 0, 0, 0, ?8, ?8, ?9, ?10, ?11, ?9, ?9, ?10, ?10, ?9, ?10, 1)";
+
+    // the tower is placed at the center of the area where any of its cells has been observed,
+    // its area is read once with TOWER_AREA_SQL and moved in Java, see writeFix()
+    private static final String TOWER_AREA_SQL = "SELECT min_lat, max_lat, min_lon, max_lon, sum_lat, sum_lon, samples,"
+            + " gps_lat, gps_lon FROM " + TowerConstant.detectedTowerTable + " WHERE LAC = ? AND TOWER = ?";
+
+    private static final String UPDATE_TOWER_SQL = "UPDATE " + TowerConstant.detectedTowerTable
+            + " SET time_last = ?1, min_lat = ?4, max_lat = ?5, min_lon = ?6, max_lon = ?7, sum_lat = ?8, sum_lon = ?9,"
+            + " samples = ?10, gps_lat = ?11, gps_lon = ?12"
+            + " WHERE LAC = ?2 AND TOWER = ?3";
+
+    private static final String INSERT_TOWER_SQL = "INSERT INTO " + TowerConstant.detectedTowerTable
+            + " (IMEI, MCC, MNC, LAC, TOWER, time_first, time_last, gps_lat, gps_lon, net_type,"
+            + " min_lat, max_lat, min_lon, max_lon, sum_lat, sum_lon, samples)"
+            + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?6, ?7, ?8, ?9, ?7, ?7, ?8, ?8, ?7, ?8, 1)";
+
+    // every fix of a batch is written inside its own savepoint. The leading ';' keeps Android
+    // 16-27 from taking ROLLBACK TO for the end of the whole transaction
+    private static final String FIX_SAVEPOINT_SQL = "SAVEPOINT fix";
+    private static final String FIX_RELEASE_SQL = "RELEASE fix";
+    private static final String FIX_ROLLBACK_SQL = ";ROLLBACK TO fix";
+
+    private static final String TABLE_EXISTS_SQL = "SELECT EXISTS (SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?)";
+
+    // %s is the day partition, one constant SQL per partition
+    private static final String SERVING_SIGNALS_AFTER_SQL = "SELECT _id, gps_lat, gps_lon, RSS FROM %1$s"
+            + " WHERE serving = 1 AND _id > (SELECT CASE WHEN MAX(_id) < CAST(?1 AS INTEGER) THEN 0"
+            + " ELSE CAST(?1 AS INTEGER) END FROM %1$s)";
+
+    private static final String SERVING_ROLLUPS_SQL = "SELECT sum_lat / samples, sum_lon / samples, avg_rss, samples FROM "
+            + TowerConstant.signalRollupTable + " WHERE serving = 1 AND max_rss < 0";
+
+    private static final String CELLS_OF_TOWER_SQL = "SELECT CID FROM " + TowerConstant.detectedCellTable + " WHERE TOWER = ?";
+
+    private static final String ALL_REGISTERED_STATIONS_SQL = "SELECT " + columnsOf("", RegisteredBaseStation.MAP_COLUMNS)
+            + " FROM " + TowerConstant.registeredStationTable;
+
+    private static final String REGISTERED_STATION_SQL = "SELECT * FROM " + TowerConstant.registeredStationTable
+            + " WHERE STATIONID = CAST(? AS INTEGER)";
+
+    private static final String DETECTED_CELL_LIST_SQL = "SELECT " + columnsOf("", DetectedCellRow.LIST_COLUMNS)
+            + " FROM " + TowerConstant.detectedCellTable;
 
     public DataBaseAdapter(Context context)
     {
@@ -56,9 +169,15 @@ public class DataBaseAdapter {
     {
         try
         {
-            mDbHelper.openDataBase();
-            mDbHelper.close();
-            mDb = mDbHelper.getReadableDatabase();
+            // the pool of the helper, one writer and the read connections, see DataBaseHelper
+            mDb = mDbHelper.getWritableDatabase();
+            // every constant query stays prepared on its connection
+            mDb.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+            mStatements = new StatementCache(mDb);
+            mSpatialIndexed = tableExists(DataBaseHelper.spatialIndexOf(TowerConstant.registeredStationTable));
+            buildScopeSql(TowerConstant.registeredStationTable, "LATITUDE", "LONGITUDE", RegisteredBaseStation.MAP_COLUMNS);
+            buildScopeSql(TowerConstant.detectedTowerTable, "gps_lat", "gps_lon", Tower.MAP_COLUMNS);
+            buildScopeSql(TowerConstant.detectedCellTable, "gps_lat", "gps_lon", null);
         }
         catch (SQLException mSQLException)
         {
@@ -70,49 +189,103 @@ public class DataBaseAdapter {
 
     public void close()
     {
+        releaseObservationStatements();
+        if (mStatements != null) {
+            Log.i(TAG, "close: statements " + mStatements);
+            mStatements.close();
+        }
         mDbHelper.close();
     }
 
-    public Cursor getTestData()
+    /**
+     * Execution count and latency of every statement run, the most total time first.
+     */
+    public List<StatementCache.Stats> getStatementStats() {
+        return mStatements.getStats();
+    }
+
+    /**
+     * Stations of a table that lie strictly inside the given bounds.
+     * With the R*Tree indexes the candidates come from the tree, the exact bounds are
+     * then checked on the table itself because the tree stores its coordinates as floats.
+     * The query can be cancelled through the signal while the cursor is filled, it then
+     * throws OperationCanceledException.
+     */
+    public  Cursor getStationsByGpsScope(String tableName, LatLng ll_West_South, LatLng ll_East_North,
+                                         CancellationSignal cancellationSignal)
     {
-        try
-        {
-            String sql ="SELECT * FROM " + TowerConstant.registeredStationTable;
+        return queryStationsInScope(tableName, ll_West_South.latitude, ll_East_North.latitude,
+                ll_West_South.longitude, ll_East_North.longitude, false, cancellationSignal);
+    }
 
-            Cursor mCur = mDb.rawQuery(sql, null);
-            if (mCur!=null)
-            {
-                mCur.moveToNext();
+    /**
+     * The whole row of a registered station, for its popup.
+     * @return null if there is no such station
+     */
+    public RegisteredBaseStation getRegisteredStation(int stationId)
+    {
+        Cursor cursor = mStatements.rawQuery("registeredStation", REGISTERED_STATION_SQL,
+                new String[]{String.valueOf(stationId)});
+        try {
+            if (cursor.moveToFirst()) {
+                return new RegisteredBaseStation.Reader(cursor).read(new RegisteredBaseStation());
             }
-            return mCur;
+            return null;
+        } finally {
+            cursor.close();
         }
-        catch (SQLException mSQLException)
-        {
-            Log.e(TAG, "getTestData >>" + mSQLException.toString());
-            throw mSQLException;
+    }
+
+    /**
+     * The detected towers of a tile, see getStationsInTile(), with the columns of the map.
+     */
+    public List<Tower> getDetectedTowersInTile(double south, double north, double west, double east,
+                                               CancellationSignal cancellationSignal)
+    {
+        List<Tower> towers = new ArrayList<>();
+        Cursor cursor = getStationsInTile(TowerConstant.detectedTowerTable, south, north, west, east, cancellationSignal);
+        try {
+            if (cursor.moveToFirst()) {
+                Tower.Reader reader = new Tower.Reader(cursor);
+                do {
+                    towers.add(reader.read(new Tower()));
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            cursor.close();
         }
+        return towers;
+    }
+
+    /**
+     * Stations with south <= lat < north and west <= lon < east, for StationTileCache:
+     * adjacent tiles share their edges and every station falls into exactly one of them.
+     */
+    public Cursor getStationsInTile(String tableName, double south, double north, double west, double east,
+                                    CancellationSignal cancellationSignal)
+    {
+        return queryStationsInScope(tableName, south, north, west, east, true, cancellationSignal);
     }
 
-    public  Cursor getStationsByGpsScope(String tableName, LatLng ll_West_South, LatLng ll_East_North)
+    private Cursor queryStationsInScope(String tableName, double south, double north, double west, double east,
+                                        boolean halfOpen, CancellationSignal cancellationSignal)
     {
         try
         {
-            String condition;
-            if (tableName.equals(TowerConstant.registeredStationTable)) {
-                condition = " LATITUDE > " + String.valueOf(ll_West_South.latitude) + " AND LATITUDE < " + String.valueOf(ll_East_North.latitude) +  " AND LONGITUDE > " + String.valueOf(ll_West_South.longitude) + " AND LONGITUDE < " + String.valueOf(ll_East_North.longitude);
-            }
-            else if (tableName.equals(TowerConstant.detectedTowerTable)) {
-                condition = " gps_lat > " + String.valueOf(ll_West_South.latitude) + " AND gps_lat < " + String.valueOf(ll_East_North.latitude) +  " AND gps_lon > " + String.valueOf(ll_West_South.longitude) + " AND gps_lon < " + String.valueOf(ll_East_North.longitude);
-            }
-            else if (tableName.equals(TowerConstant.detectedCellTable)) {
-                condition = " gps_lat > " + String.valueOf(ll_West_South.latitude) + " AND gps_lat < " + String.valueOf(ll_East_North.latitude) +  " AND gps_lon > " + String.valueOf(ll_West_South.longitude) + " AND gps_lon < " + String.valueOf(ll_East_North.longitude);
-            }
-            else {
+            String[] scopeSql = mScopeSql.get(tableName);
+            if (scopeSql == null) {
                 return null;
             }
-            String sql ="SELECT * FROM " + tableName +" WHERE " + condition;
-
-            Cursor mCur = mDb.rawQuery(sql, null);
+            String[] args = new String[] {
+                    String.valueOf(south),
+                    String.valueOf(north),
+                    String.valueOf(west),
+                    String.valueOf(east)
+            };
+
+            Cursor mCur = halfOpen
+                    ? mStatements.rawQuery("stationsInTile", scopeSql[1], args, cancellationSignal)
+                    : mStatements.rawQuery("stationsInScope", scopeSql[0], args, cancellationSignal);
             if (mCur!=null)
             {
                 mCur.moveToNext();
@@ -126,225 +299,338 @@ public class DataBaseAdapter {
         }
     }
 
-
-    public Cursor returnDetectedStations() {
-        Cursor mCur = mDb.rawQuery("SELECT * FROM " + TowerConstant.detectedCellTable, null);
-        if (mCur!=null) {
-            mCur.moveToFirst();
+    // the strict and the half open viewport query of a table, all columns without a projection
+    private void buildScopeSql(String tableName, String latColumn, String lonColumn, String[] columns) {
+        String projection = columns == null ? "t.*" : columnsOf("t.", columns);
+        String[] sql = new String[2];
+        for (int i = 0; i < 2; i++) {
+            // ?1 south, ?2 north, ?3 west, ?4 east
+            String lower = i == 1 ? " >= " : " > ";
+            String condition = " t." + latColumn + lower + "?1 AND t." + latColumn + " < ?2 AND t." + lonColumn + lower + "?3 AND t." + lonColumn + " < ?4";
+            if (mSpatialIndexed) {
+                sql[i] = "SELECT " + projection + " FROM " + tableName + " t JOIN " + DataBaseHelper.spatialIndexOf(tableName) + " r ON t.rowid = r.id"
+                        + " WHERE r.max_lat >= ?1 AND r.min_lat <= ?2 AND r.max_lon >= ?3 AND r.min_lon <= ?4 AND" + condition;
+            }
+            else {
+                sql[i] = "SELECT " + projection + " FROM " + tableName + " t WHERE" + condition;
+            }
         }
-        return mCur;
+        mScopeSql.put(tableName, sql);
     }
 
-    public Cursor getDetectedCellsByTowerId(int tid) {
-        Cursor mCur = mDb.rawQuery(String.format("SELECT * FROM " + TowerConstant.detectedCellTable + " WHERE TOWER = %d",tid), null);
-        if (mCur!=null) {
-            mCur.moveToFirst();
+    // the columns separated by commas, each with the prefix
+    private static String columnsOf(String prefix, String[] columns) {
+        StringBuilder list = new StringBuilder();
+        for (String column : columns) {
+            if (list.length() > 0) {
+                list.append(", ");
+            }
+            list.append(prefix).append(column);
         }
-        return mCur;
+        return list.toString();
     }
 
-    public static String getCurrentTimeStamp() {
-        //yyyyMMddHHmmss <-- this format is needed for OCID upload
-        return new SimpleDateFormat("yyyyMMddHHmmss", Locale.getDefault()).format(new Date());
+    // the whole reference table with the columns of the map, for RegisteredStationIndex
+    public Cursor getAllRegisteredStations() {
+        return mStatements.rawQuery("allRegisteredStations", ALL_REGISTERED_STATIONS_SQL, null);
     }
 
-    public boolean cellInDbiBts(int lac, int cellID) {
-        String query = String.format("SELECT CID,LAC FROM " + TowerConstant.detectedCellTable + " WHERE LAC = %d AND CID = %d",
-                lac, cellID);
-        Cursor cursor = mDb.rawQuery(query, null);
-        boolean exists = cursor.getCount() > 0;
-        cursor.close();
-        return exists;
+    // the day partitions of the signal history, oldest first
+    public List<SignalHistory.Partition> getHistoryPartitions() {
+        return SignalHistory.getPartitions(mStatements);
     }
 
-    public boolean cellRelatedTowerInTable(Cell cell) {
-        String query = String.format("SELECT LAC,TOWER FROM " + TowerConstant.detectedTowerTable +" WHERE LAC = %d AND TOWER = %d",
-                cell.getLac(), cell.getTowerId());
-        Cursor cursor = mDb.rawQuery(query, null);
-        boolean exists = cursor.getCount() > 0;
-        cursor.close();
-        return exists;
+    /**
+     * _id, gps_lat, gps_lon, RSS of the serving cells of the day partition after the _id, for
+     * SignalHeatmap. The rows are not written in time order, the _id of a partition only grows.
+     * A partition whose ids are all below the _id was dropped and created again, it is read
+     * from the start.
+     */
+    public Cursor getServingSignalsAfter(SignalHistory.Partition partition, long lastId) {
+        return mStatements.rawQuery("servingSignalsAfter", String.format(SERVING_SIGNALS_AFTER_SQL, partition.table),
+                new String[]{String.valueOf(lastId)});
     }
 
-    //if (!cellInDbiBts(cell.getLac(), cell.getCid())) {
-    public void insertBTS(Cell cell, String imei) {
-        ContentValues values = new ContentValues();
-
-        values.put("IMEI", imei);
-        values.put("MCC", cell.getMcc());
-        values.put("MNC", cell.getMnc());
-        values.put("LAC", cell.getLac());
-        values.put("TOWER", cell.getTowerId());
-        values.put("CID", cell.getCid());
-        values.put("PSC", cell.getPsc());
-
-        // TODO: setting these to 0 because if empty causing error in DB Restore
-        values.put("T3212", 0);  // TODO
-        values.put("A5x", 0);    // TODO
-        values.put("ST_id", 0);  // TODO
-
-        values.put("time_first", getCurrentTimeStamp());
-        values.put("time_last", getCurrentTimeStamp());
-
-        values.put("gps_lat", cell.getLat());  // TODO NO! These should be exact GPS from DBe_import or by manual addition!
-        values.put("gps_lon", cell.getLon());  // TODO NO! These should be exact GPS from DBe_import or by manual addition!
-        values.put("net_type", cell.getNetType());
-
-        mDb.insert(TowerConstant.detectedCellTable, null, values);
-        //log.info("DBi_bts was populated.");
-
+    /**
+     * gps_lat, gps_lon, avg_rss, samples of the hourly rollups of the serving cells, the position
+     * is the center of the samples, for SignalHeatmap. The hours with a sample of no signal are
+     * left out, their mean is not a signal strength.
+     */
+    public Cursor getServingRollups() {
+        return mStatements.rawQuery("servingRollups", SERVING_ROLLUPS_SQL, null);
     }
 
-    public void updateBTS(Cell cell) {
-        // If cell is already in the DB, update it to last time seen and
-        // update its GPS coordinates, if not 0.0
-        ContentValues values = new ContentValues();
-        values.put("time_last", getCurrentTimeStamp());
-        values.put("gps_lat", cell.getLat());
-        values.put("gps_lon", cell.getLon());
-        // This is the native update equivalent to:
-        // "UPDATE Dbi_bts time_last=...,gps_lat=..., gps_lon=... WHERE CID=..."
-        // update (String table, ContentValues values, String whereClause, String[] whereArgs)
-        mDb.update(TowerConstant.detectedCellTable, values, "CID=?", new String[]{Integer.toString(cell.getCid())});
+    // the DetectedCellRow.LIST_COLUMNS of every detected cell
+    public Cursor returnDetectedStations() {
+        Cursor mCur = mStatements.rawQuery("detectedStations", DETECTED_CELL_LIST_SQL, null);
+        if (mCur!=null) {
+            mCur.moveToFirst();
+        }
+        return mCur;
     }
 
-    public void insertCellSingalHistory(Cell cell,String imei) {
-        ContentValues values = new ContentValues();
-        values.put("IMEI", imei);
-        values.put("MCC", cell.getMcc());
-        values.put("MNC", cell.getMnc());
-        values.put("LAC", cell.getLac());
-        values.put("CID", cell.getCid());
-        values.put("RSS", cell.getDbm());
-
-        values.put("time", getCurrentTimeStamp());
-        values.put("gps_lat", cell.getLat());
-        values.put("gps_lon", cell.getLon());
-        values.put("net_type", cell.getNetType());
-
-        mDb.insert(TowerConstant.cellSignalHistoryTable, null, values);
-        //log.info("DBi_bts was populated.");
+    // the CIDs of the detected cells of a tower
+    public int[] getCellIdsOfTower(int tid) {
+        Cursor cursor = mStatements.rawQuery("cellsOfTower", CELLS_OF_TOWER_SQL, new String[]{String.valueOf(tid)});
+        try {
+            int[] cids = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext() && i < cids.length; i++) {
+                cids[i] = cursor.getInt(0);
+            }
+            return cids;
+        } finally {
+            cursor.close();
+        }
     }
 
-    //
-    public void insertCellRelatedTower(Cell cell, String imei) {
-        ContentValues values = new ContentValues();
-
-        values.put("IMEI", imei);
-        values.put("MCC", cell.getMcc());
-        values.put("MNC", cell.getMnc());
-        values.put("LAC", cell.getLac());
-        values.put("TOWER", cell.getTowerId());
-
-        values.put("time_first", getCurrentTimeStamp());
-        values.put("time_last", getCurrentTimeStamp());
-
-        values.put("gps_lat", cell.getLat());
-        values.put("gps_lon", cell.getLon());
-        values.put("net_type", cell.getNetType());
-
-        mDb.insert(TowerConstant.detectedTowerTable, null, values);
+    private boolean tableExists(String name) {
+        SQLiteStatement stmt = mStatements.get(TABLE_EXISTS_SQL);
+        synchronized (stmt) {
+            stmt.bindString(1, name);
+            return mStatements.simpleQueryForLong("tableExists", stmt) != 0;
+        }
     }
 
-    public void updateCellRelatedTower(Cell cell) {
-        // If tower is already in the DB, update it to last time seen and
-        // update its GPS coordinates, if not 0.0
-        ContentValues values = new ContentValues();
-        values.put("time_last", getCurrentTimeStamp());
-        values.put("gps_lat", cell.getLat());
-        values.put("gps_lon", cell.getLon());
-
-        mDb.update(TowerConstant.detectedTowerTable, values, "TOWER=?", new String[]{Integer.toString(cell.getTowerId())});
+    public static String getCurrentTimeStamp() {
+        return getTimeStamp(System.currentTimeMillis());
     }
 
+    /**
+     * The times are stored as epoch milliseconds, this is the text shown and exported for them.
+     */
+    public static String getTimeStamp(long time) {
+        return TIME_STAMP_FORMAT.get().format(new Date(time));
+    }
 
-    public double maxLatOfCellArea(Cell cell) {
-        String query = String.format("SELECT MAX(gps_lat) FROM " + TowerConstant.cellSignalHistoryTable + " WHERE LAC = %d AND CID = %d", cell.getLac(), cell.getCid());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+    /**
+     * Roll up the days of signal history that are over and drop the days past the retention,
+     * see SignalHistory. Only does the work once a day, cheap to call after every write. After a
+     * failure it waits HISTORY_RETRY_DELAY, doubled with every further failure, before it tries again.
+     */
+    public synchronized void maintainHistory(int retentionDays) {
+        long now = System.currentTimeMillis();
+        if (now < mHistoryMaintainedUntil) {
+            return;
         }
-       else {
-            return 0;
+        try {
+            SignalHistory.Partition today = SignalHistory.partitionOf(mStatements, now);
+            SignalHistory.maintain(mStatements, today, retentionDays);
+            mHistoryMaintainedUntil = today.end;
+            mHistoryFailures = 0;
+        }
+        catch (SQLException mSQLException)
+        {
+            long delay = HISTORY_RETRY_DELAY << Math.min(mHistoryFailures, MAX_HISTORY_RETRY_SHIFT);
+            mHistoryFailures++;
+            mHistoryMaintainedUntil = now + delay;
+            Log.e(TAG, "maintainHistory >>" + mSQLException.toString() + ", failed " + mHistoryFailures
+                    + " times, next attempt in " + delay / 60000 + " min");
         }
     }
 
-
-    public double minLatOfCellArea(Cell cell) {
-        String query = String.format("SELECT MIN(gps_lat) FROM " + TowerConstant.cellSignalHistoryTable + " WHERE LAC = %d AND CID = %d", cell.getLac(), cell.getCid());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+    /**
+     * Record a batch of GPS fixes in a single transaction.
+     * Every visible cell of a fix is appended to the day partition of the signal history with
+     * the same compiled statement, tagged with the fix id and whether it is the serving cell. For the serving
+     * cell of a GPS fix, if one is registered, the related rows of DETECTEDCELLS and DETECTEDTOWERS are inserted or updated and
+     * moved to the center of their observed area. The area comes from the running aggregates
+     * of the rows, so no history is scanned. A fix that fails is rolled back to its savepoint,
+     * none of its rows is kept, and the rest of the batch is still committed.
+     * @param towers receives the positions of the towers written, before and after, may be null
+     */
+    public void recordFixes(List<CellFix> fixes, String imei, TowerPositions towers) {
+        compileObservationStatements();
+        boolean successful = false;
+        // BEGIN IMMEDIATE, in WAL mode the readers keep going while the batch is written
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < fixes.size(); i++) {
+                mDb.execSQL(FIX_SAVEPOINT_SQL);
+                try {
+                    writeFix(fixes.get(i), imei, towers);
+                }
+                catch (SQLException mSQLException)
+                {
+                    // skip this fix, its history rows are undone with its DETECTED* updates
+                    Log.e(TAG, "recordFixes >>" + mSQLException.toString());
+                    mDb.execSQL(FIX_ROLLBACK_SQL);
+                    // a partition created for this fix is gone
+                    releaseSignalStatement();
+                }
+                mDb.execSQL(FIX_RELEASE_SQL);
+            }
+            mDb.setTransactionSuccessful();
+            successful = true;
         }
-        else {
-            return 0;
+        finally
+        {
+            mDb.endTransaction();
+            if (!successful) {
+                // a partition created in the transaction is gone
+                releaseSignalStatement();
+            }
         }
     }
 
-    public double maxLonOfCellArea(Cell cell) {
-        String query = String.format("SELECT MAX(gps_lon) FROM " + TowerConstant.cellSignalHistoryTable + " WHERE LAC = %d AND CID = %d", cell.getLac(), cell.getCid());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
-        }
-        else {
-            return 0;
+    private void writeFix(CellFix fix, String imei, TowerPositions towers) {
+        long time = fix.getTime();
+        List<Cell> cells = fix.getCells();
+
+        //table CELLSIGNALHISTROY_yyyyMMdd, one row per visible cell
+        SQLiteStatement stmt = signalStatementFor(time);
+        for (int i = 0; i < cells.size(); i++) {
+            Cell cell = cells.get(i);
+            stmt.clearBindings();
+            bindText(stmt, 1, imei);
+            stmt.bindLong(2, cell.getMcc());
+            stmt.bindLong(3, cell.getMnc());
+            stmt.bindLong(4, cell.getLac());
+            stmt.bindLong(5, cell.getCid());
+            stmt.bindLong(6, cell.getDbm());
+            stmt.bindLong(7, time);
+            stmt.bindDouble(8, fix.getLat());
+            stmt.bindDouble(9, fix.getLon());
+            stmt.bindLong(10, cell.getNetType());
+            stmt.bindLong(11, i == 0 && fix.isServing() ? 1 : 0);
+            stmt.bindLong(12, time);
+            mStatements.executeInsert("insertSignal", stmt);
         }
-    }
 
-    public double minLonOfCellArea(Cell cell) {
-        String query = String.format("SELECT MIN(gps_lon) FROM " + TowerConstant.cellSignalHistoryTable + " WHERE LAC = %d AND CID = %d", cell.getLac(), cell.getCid());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+        // only the registered cell is a detected cell/tower, a neighbour is not placed by its fixes,
+        // nor is any cell by a radio sample taken away from the fix
+        if (!fix.isServing() || fix.isRadioOnly()) {
+            return;
         }
-        else {
-            return 0;
+        Cell cell = fix.getServingCell();
+
+        //table DETECTEDCELLS
+        stmt = mUpdateCellStmt;
+        stmt.clearBindings();
+        stmt.bindLong(1, time);
+        stmt.bindLong(2, cell.getLac());
+        stmt.bindLong(3, cell.getCid());
+        stmt.bindDouble(4, cell.getLat());
+        stmt.bindDouble(5, cell.getLon());
+        if (mStatements.executeUpdateDelete("updateCell", stmt) == 0) {
+            stmt = mInsertCellStmt;
+            stmt.clearBindings();
+            bindText(stmt, 1, imei);
+            stmt.bindLong(2, cell.getMcc());
+            stmt.bindLong(3, cell.getMnc());
+            stmt.bindLong(4, cell.getLac());
+            stmt.bindLong(5, cell.getTowerId());
+            stmt.bindLong(6, cell.getCid());
+            stmt.bindLong(7, cell.getPsc());
+            stmt.bindLong(8, time);
+            stmt.bindDouble(9, cell.getLat());
+            stmt.bindDouble(10, cell.getLon());
+            stmt.bindLong(11, cell.getNetType());
+            mStatements.executeInsert("insertCell", stmt);
         }
-    }
 
-    public double maxLatOfCellRelatedTowerArea(Cell cell) {
-        String query = String.format("SELECT MAX(gps_lat) FROM " + TowerConstant.detectedCellTable + " WHERE LAC = %d AND TOWER = %d", cell.getLac(), cell.getTowerId());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+        //table DETECTEDTOWERS, the tower moves with its area, it is reported where it was and where it is.
+        //the area is read once and moved here, the row is then written with one statement
+        double lat = cell.getLat();
+        double lon = cell.getLon();
+        mTowerArgs[0] = String.valueOf(cell.getLac());
+        mTowerArgs[1] = String.valueOf(cell.getTowerId());
+        Cursor area = mStatements.rawQuery("towerArea", TOWER_AREA_SQL, mTowerArgs);
+        try {
+            if (area.moveToFirst()) {
+                double minLat = Math.min(area.getDouble(0), lat);
+                double maxLat = Math.max(area.getDouble(1), lat);
+                double minLon = Math.min(area.getDouble(2), lon);
+                double maxLon = Math.max(area.getDouble(3), lon);
+                double centerLat = (minLat + maxLat) / 2;
+                double centerLon = (minLon + maxLon) / 2;
+                stmt = mUpdateTowerStmt;
+                stmt.clearBindings();
+                stmt.bindLong(1, time);
+                stmt.bindLong(2, cell.getLac());
+                stmt.bindLong(3, cell.getTowerId());
+                stmt.bindDouble(4, minLat);
+                stmt.bindDouble(5, maxLat);
+                stmt.bindDouble(6, minLon);
+                stmt.bindDouble(7, maxLon);
+                stmt.bindDouble(8, area.getDouble(4) + lat);
+                stmt.bindDouble(9, area.getDouble(5) + lon);
+                stmt.bindLong(10, area.getLong(6) + 1);
+                stmt.bindDouble(11, centerLat);
+                stmt.bindDouble(12, centerLon);
+                mStatements.executeUpdateDelete("updateTower", stmt);
+                if (towers != null) {
+                    towers.add(area.getDouble(7), area.getDouble(8));
+                    towers.add(centerLat, centerLon);
+                }
+            }
+            else {
+                stmt = mInsertTowerStmt;
+                stmt.clearBindings();
+                bindText(stmt, 1, imei);
+                stmt.bindLong(2, cell.getMcc());
+                stmt.bindLong(3, cell.getMnc());
+                stmt.bindLong(4, cell.getLac());
+                stmt.bindLong(5, cell.getTowerId());
+                stmt.bindLong(6, time);
+                stmt.bindDouble(7, lat);
+                stmt.bindDouble(8, lon);
+                stmt.bindLong(9, cell.getNetType());
+                mStatements.executeInsert("insertTower", stmt);
+                if (towers != null) {
+                    towers.add(lat, lon);
+                }
+            }
+        } finally {
+            area.close();
         }
-        else {
-            return 0;
+    }
+
+    private void compileObservationStatements() {
+        if (mUpdateCellStmt != null) {
+            return;
         }
+        mUpdateCellStmt = mStatements.get(UPDATE_CELL_SQL);
+        mInsertCellStmt = mStatements.get(INSERT_CELL_SQL);
+        mUpdateTowerStmt = mStatements.get(UPDATE_TOWER_SQL);
+        mInsertTowerStmt = mStatements.get(INSERT_TOWER_SQL);
     }
 
+    // the statements themselves are closed with mStatements
+    private void releaseObservationStatements() {
+        releaseSignalStatement();
+        mUpdateCellStmt = null;
+        mInsertCellStmt = null;
+        mUpdateTowerStmt = null;
+        mInsertTowerStmt = null;
+    }
 
-    public double minLatOfCellRelatedTowerArea(Cell cell) {
-        String query = String.format("SELECT MIN(gps_lat) FROM " + TowerConstant.detectedCellTable + " WHERE LAC = %d AND TOWER = %d", cell.getLac(), cell.getTowerId());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
-        }
-        else {
-            return 0;
+    // the insert into the day partition of the time, recompiled when the day changes
+    private SQLiteStatement signalStatementFor(long time) {
+        if (mInsertSignalStmt == null || !mSignalPartition.contains(time)) {
+            SignalHistory.Partition partition = SignalHistory.partitionOf(mStatements, time);
+            releaseSignalStatement();
+            mInsertSignalSql = String.format(INSERT_SIGNAL_SQL, partition.table);
+            mInsertSignalStmt = mStatements.get(mInsertSignalSql);
+            mSignalPartition = partition;
         }
+        return mInsertSignalStmt;
     }
 
-    public double maxLonOfCellRelatedTowerArea(Cell cell) {
-        String query = String.format("SELECT MAX(gps_lon) FROM " + TowerConstant.detectedCellTable + " WHERE LAC = %d AND TOWER = %d", cell.getLac(), cell.getTowerId());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
-        }
-        else {
-            return 0;
+    private void releaseSignalStatement() {
+        if (mInsertSignalStmt != null) {
+            mStatements.release(mInsertSignalSql);
+            mInsertSignalStmt = null;
+            mInsertSignalSql = null;
+            mSignalPartition = null;
         }
     }
 
-    public double minLonOfCellRelatedTowerArea(Cell cell) {
-        String query = String.format("SELECT MIN(gps_lon) FROM " + TowerConstant.detectedCellTable + " WHERE LAC = %d AND TOWER = %d", cell.getLac(), cell.getTowerId());
-        Cursor cursor = mDb.rawQuery(query, null);
-        if (cursor.moveToFirst()) {
-            return cursor.getDouble(0);
+    private static void bindText(SQLiteStatement stmt, int index, String value) {
+        if (value == null) {
+            stmt.bindNull(index);
         }
         else {
-            return 0;
+            stmt.bindString(index, value);
         }
     }
 
@@ -352,15 +638,19 @@ public class DataBaseAdapter {
         String[] exportTables =  new String[]{
             TowerConstant.detectedTowerTable,
             TowerConstant.detectedCellTable,
-            TowerConstant.cellSignalHistoryTable,
+            TowerConstant.signalRollupTable,
         };
 
         try {
             //backup the tables
             for (String table : exportTables) {
-                backup(table);
+                backup(table, "SELECT * FROM " + table);
             }
-            //backup the whole db
+            //the raw history of every day partition in one file
+            backup(TowerConstant.cellSignalHistoryTable,
+                    SignalHistory.unionOf(SignalHistory.getPartitions(mStatements), "SELECT * FROM %s") + " ORDER BY time");
+            //backup the whole db, with the pages still in the WAL written back to the file
+            checkpoint();
             exportDatabse("towerclient.sqlite");
             return true;
         } catch (Exception ioe) {
@@ -369,7 +659,7 @@ public class DataBaseAdapter {
         }
     }
 
-    private void backup(String tableName) {
+    private void backup(String tableName, String query) {
         String externalFilesDirPath = mContext.getExternalFilesDir(null) + File.separator;
         File dir = new File(externalFilesDirPath);
         if (!dir.exists()) {
@@ -384,7 +674,7 @@ public class DataBaseAdapter {
             CSVWriter csvWrite = new CSVWriter(new FileWriter(file));
             Log.d(TAG, "DB backup() tableName: " + tableName);
 
-            Cursor c = mDb.rawQuery("SELECT * FROM " + tableName, new String[0]);
+            Cursor c = mDb.rawQuery(query, new String[0]);
 
             csvWrite.writeNext(c.getColumnNames());
             String[] rowData = new String[c.getColumnCount()];
@@ -396,6 +686,9 @@ public class DataBaseAdapter {
                     if (columnName.equals("gps_lat") || columnName.equals("gps_lon")) {
                         rowData[i] = String.valueOf(c.getDouble(i));
                     }
+                    else if (TIME_COLUMNS.contains(columnName) && !c.isNull(i)) {
+                        rowData[i] = getTimeStamp(c.getLong(i));
+                    }
                     else {
                         rowData[i] = c.getString(i);
                     }
@@ -411,6 +704,16 @@ public class DataBaseAdapter {
         Log.i(TAG, "Backup(): Successfully exported DB table to: " + file);
     }
 
+    // a PRAGMA that writes runs on the writer connection
+    private void checkpoint() {
+        Cursor cursor = mDb.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
     public void exportDatabse(String databaseName) {
         try {
             if (Environment.getExternalStorageDirectory().canWrite()) {
@@ -5,8 +5,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Locale;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -18,29 +21,171 @@ import android.util.Log;
 public class DataBaseHelper extends SQLiteOpenHelper
 {
     private static String TAG = "DataBaseHelper"; // Tag just for the LogCat window
-    //destination path (location) of our database on device
-    private static String DB_PATH = "";
     private static String DB_NAME ="towerclient.sqlite";// Database name
+
+    /**
+     * One step of the schema upgrade, from (version - 1) to version.
+     * Every change to the schema must be shipped as a new Migration appended to MIGRATIONS,
+     * the asset database itself is never changed.
+     */
+    private static abstract class Migration {
+        final int version;
+        final String description;
+
+        Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        abstract void apply(SQLiteDatabase db);
+    }
+
+    // the database copied from the assets is version 1, these migrations upgrade it in place
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2, "area aggregates on DETECTEDCELLS and DETECTEDTOWERS") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    addAreaAggregateColumns(db, TowerConstant.detectedCellTable);
+                    addAreaAggregateColumns(db, TowerConstant.detectedTowerTable);
+                    rebuildAreaAggregates(db, pointsOf(TowerConstant.cellSignalHistoryTable));
+                }
+            },
+            new Migration(3, "indexes for the (LAC, CID), (LAC, TOWER) and gps lookups") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    createIndex(db, TowerConstant.detectedCellTable, "LAC, CID");
+                    createIndex(db, TowerConstant.detectedCellTable, "LAC, TOWER");
+                    createIndex(db, TowerConstant.detectedCellTable, "gps_lat, gps_lon");
+                    createIndex(db, TowerConstant.detectedTowerTable, "LAC, TOWER");
+                    createIndex(db, TowerConstant.detectedTowerTable, "gps_lat, gps_lon");
+                    createIndex(db, TowerConstant.registeredStationTable, "LATITUDE, LONGITUDE");
+                    // CELLSIGNALHISTROY is append only and is not looked up per sample, keep its inserts cheap
+                    db.execSQL("ANALYZE");
+                }
+            },
+            new Migration(4, "R*Tree spatial indexes for the viewport queries") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // the rtree module is optional in SQLite, without it the viewport queries
+                    // keep using the (lat, lon) indexes of version 3
+                    if (createSpatialIndex(db, TowerConstant.registeredStationTable, "LATITUDE", "LONGITUDE")) {
+                        createSpatialIndex(db, TowerConstant.detectedTowerTable, "gps_lat", "gps_lon");
+                        createSpatialIndex(db, TowerConstant.detectedCellTable, "gps_lat", "gps_lon");
+                    }
+                }
+            },
+            new Migration(5, "neighbouring cells in CELLSIGNALHISTROY") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // rows written so far are all serving cells
+                    db.execSQL("ALTER TABLE " + TowerConstant.cellSignalHistoryTable + " ADD COLUMN serving INTEGER DEFAULT 1");
+                    db.execSQL("ALTER TABLE " + TowerConstant.cellSignalHistoryTable + " ADD COLUMN fix_id INTEGER");
+                }
+            },
+            new Migration(6, "epoch millisecond times, index on CELLSIGNALHISTROY.time") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // the fix id is the exact time of the fix, older rows only have the text
+                    convertTimeColumns(db, TowerConstant.cellSignalHistoryTable,
+                            new String[]{"time"}, new String[]{"COALESCE(fix_id, " + epochOf("time") + ")"});
+                    convertTimeColumns(db, TowerConstant.detectedCellTable,
+                            new String[]{"time_first", "time_last"}, new String[]{epochOf("time_first"), epochOf("time_last")});
+                    convertTimeColumns(db, TowerConstant.detectedTowerTable,
+                            new String[]{"time_first", "time_last"}, new String[]{epochOf("time_first"), epochOf("time_last")});
+                    // the indexes and triggers went with the old tables
+                    createIndex(db, TowerConstant.detectedCellTable, "LAC, CID");
+                    createIndex(db, TowerConstant.detectedCellTable, "LAC, TOWER");
+                    createIndex(db, TowerConstant.detectedCellTable, "gps_lat, gps_lon");
+                    createIndex(db, TowerConstant.detectedTowerTable, "LAC, TOWER");
+                    createIndex(db, TowerConstant.detectedTowerTable, "gps_lat, gps_lon");
+                    if (tableExists(db, spatialIndexOf(TowerConstant.detectedTowerTable))) {
+                        createSpatialIndex(db, TowerConstant.detectedTowerTable, "gps_lat", "gps_lon");
+                        createSpatialIndex(db, TowerConstant.detectedCellTable, "gps_lat", "gps_lon");
+                    }
+                    // the history is appended in time order, the index grows at its end
+                    createIndex(db, TowerConstant.cellSignalHistoryTable, "time");
+                    db.execSQL("ANALYZE");
+                }
+            },
+            new Migration(7, "CELLSIGNALHISTROY partitioned by day, hourly rollups") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    SignalHistory.createCatalog(db);
+                    // move the rows day by day, the next day is the day of the next time on the index,
+                    // days without samples get no partition. SignalHistory.maintain() rolls them up later.
+                    String history = TowerConstant.cellSignalHistoryTable;
+                    String columns = "_id, IMEI, MCC, MNC, LAC, CID, RSS, time, gps_lat, gps_lon, net_type, serving, fix_id";
+                    StatementCache statements = new StatementCache(db);
+                    try {
+                        boolean first = true;
+                        long time = firstTimeFrom(db, history, Long.MIN_VALUE);
+                        while (time != Long.MIN_VALUE) {
+                            SignalHistory.Partition partition = SignalHistory.partitionOf(statements, time);
+                            db.execSQL("INSERT INTO " + partition.table + " (" + columns + ") SELECT " + columns + " FROM " + history
+                                    + " WHERE (time >= " + partition.start + " AND time < " + partition.end + ")"
+                                    + (first ? " OR time IS NULL" : ""));
+                            first = false;
+                            time = firstTimeFrom(db, history, partition.end);
+                        }
+                    } finally {
+                        statements.close();
+                    }
+                    db.execSQL("DROP TABLE " + history);
+                }
+            },
+            new Migration(8, "the last _id rolled up of every history partition") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    String catalog = TowerConstant.historyPartitionTable;
+                    db.execSQL("ALTER TABLE " + catalog + " ADD COLUMN rolled_up_id INTEGER DEFAULT 0");
+                    // the days rolled up so far were rolled up whole
+                    StatementCache statements = new StatementCache(db);
+                    try {
+                        for (SignalHistory.Partition partition : SignalHistory.getPartitions(statements)) {
+                            if (partition.rolledUp) {
+                                db.execSQL("UPDATE " + catalog + " SET rolled_up_id = (SELECT COALESCE(MAX(_id), 0) FROM "
+                                        + partition.table + ") WHERE day = " + partition.day);
+                            }
+                        }
+                    } finally {
+                        statements.close();
+                    }
+                }
+            },
+    };
+
     // Database Version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = MIGRATIONS[MIGRATIONS.length - 1].version;
 
     // BaseStation table name
     //private static final String TABLE_STATION2 = "REGISTEREDSTATION2";
 
     private SQLiteDatabase mDataBase;
     private final Context mContext;
+    //destination path (location) of our database on device
+    private final String mDbPath;
+    private final String mDbName;
 
     public DataBaseHelper(Context context)
     {
-        super(context, DB_NAME, null, 1);// 1? Its database Version
+        this(context, DB_NAME);
+    }
+
+    // the asset database copied under another name, for the tests
+    DataBaseHelper(Context context, String name)
+    {
+        super(context, name, null, DATABASE_VERSION);
         if(android.os.Build.VERSION.SDK_INT >= 17){
-            DB_PATH = context.getApplicationInfo().dataDir + "/databases/";
+            mDbPath = context.getApplicationInfo().dataDir + "/databases/";
         }
         else
         {
-            DB_PATH = "/data/data/" + context.getPackageName() + "/databases/";
+            mDbPath = "/data/data/" + context.getPackageName() + "/databases/";
         }
+        mDbName = name;
         this.mContext = context;
+        // one writer connection and a pool of read connections that see the last commit
+        setWriteAheadLoggingEnabled(true);
     }
 
 
@@ -54,12 +199,200 @@ public class DataBaseHelper extends SQLiteOpenHelper
     }
 
 
+    // runs inside the transaction that also sets the new user_version,
+    // so a failing migration leaves the database at its old version
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        //db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATION2);
-        // Creating tables again
-        //onCreate(db);
+        Log.i(TAG, "onUpgrade from " + oldVersion + " to " + newVersion);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TowerConstant.schemaHistoryTable
+                + " (version INTEGER PRIMARY KEY, description TEXT, time_applied TEXT)");
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+            Log.i(TAG, "onUpgrade apply " + migration.version + ": " + migration.description);
+            migration.apply(db);
+            ContentValues values = new ContentValues();
+            values.put("version", migration.version);
+            values.put("description", migration.description);
+            values.put("time_applied", DataBaseAdapter.getCurrentTimeStamp());
+            db.insertWithOnConflict(TowerConstant.schemaHistoryTable, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    // name of the R*Tree virtual table that indexes the coordinates of a table
+    static String spatialIndexOf(String table) {
+        return table + "_RTREE";
+    }
+
+    /**
+     * Create an R*Tree over the point coordinates of a table, fill it, and keep it in sync
+     * with triggers. The R*Tree id is the rowid of the indexed row.
+     *
+     * @return false if this SQLite build has no rtree module
+     */
+    private static boolean createSpatialIndex(SQLiteDatabase db, String table, String latColumn, String lonColumn) {
+        String rtree = spatialIndexOf(table);
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + rtree + " USING rtree(id, min_lat, max_lat, min_lon, max_lon)");
+        } catch (SQLException e) {
+            Log.w(TAG, "createSpatialIndex: rtree is not available, " + e.toString());
+            return false;
+        }
+        String point = latColumn + ", " + latColumn + ", " + lonColumn + ", " + lonColumn;
+        String newPoint = "new." + latColumn + ", new." + latColumn + ", new." + lonColumn + ", new." + lonColumn;
+        db.execSQL("INSERT OR REPLACE INTO " + rtree + " SELECT rowid, " + point + " FROM " + table);
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + rtree + "_insert AFTER INSERT ON " + table
+                + " BEGIN INSERT OR REPLACE INTO " + rtree + " VALUES (new.rowid, " + newPoint + "); END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + rtree + "_update AFTER UPDATE OF " + latColumn + ", " + lonColumn + " ON " + table
+                + " BEGIN INSERT OR REPLACE INTO " + rtree + " VALUES (new.rowid, " + newPoint + "); END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + rtree + "_delete AFTER DELETE ON " + table
+                + " BEGIN DELETE FROM " + rtree + " WHERE id = old.rowid; END");
+        return true;
+    }
+
+    private static void createIndex(SQLiteDatabase db, String table, String columns) {
+        String name = "idx_" + table.toLowerCase(Locale.US) + "_" + columns.toLowerCase(Locale.US).replace(", ", "_");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")");
+    }
+
+    /**
+     * Copy a table into a new one of the same columns where the time columns are INTEGER,
+     * SQLite cannot change the type of a column. The rowids are kept. The indexes and triggers
+     * of the table are dropped with it.
+     *
+     * @param expressions the value of each time column in the new table
+     */
+    private static void convertTimeColumns(SQLiteDatabase db, String table, String[] timeColumns, String[] expressions) {
+        StringBuilder definitions = new StringBuilder();
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        Cursor info = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (info.moveToNext()) {
+                String name = info.getString(1);
+                String type = info.getString(2);
+                String value = name;
+                for (int i = 0; i < timeColumns.length; i++) {
+                    if (timeColumns[i].equals(name)) {
+                        type = "INTEGER";
+                        value = expressions[i];
+                    }
+                }
+                if (definitions.length() > 0) {
+                    definitions.append(", ");
+                    columns.append(", ");
+                    values.append(", ");
+                }
+                definitions.append(name).append(' ').append(type);
+                if (info.getInt(5) > 0) {
+                    definitions.append(" PRIMARY KEY AUTOINCREMENT");
+                } else {
+                    if (info.getInt(3) != 0) {
+                        definitions.append(" NOT NULL");
+                    }
+                    if (!info.isNull(4)) {
+                        definitions.append(" DEFAULT ").append(info.getString(4));
+                    }
+                }
+                columns.append(name);
+                values.append(value);
+            }
+        } finally {
+            info.close();
+        }
+        String converted = table + "_converted";
+        db.execSQL("CREATE TABLE " + converted + " (" + definitions + ")");
+        db.execSQL("INSERT INTO " + converted + " (" + columns + ") SELECT " + values + " FROM " + table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + converted + " RENAME TO " + table);
+    }
+
+    // SQL of the epoch milliseconds of a yyyyMMddHHmmss local time text column, see DataBaseAdapter.getTimeStamp
+    private static String epochOf(String column) {
+        return "CAST(strftime('%s', substr(" + column + ", 1, 4) || '-' || substr(" + column + ", 5, 2) || '-' || substr(" + column + ", 7, 2)"
+                + " || ' ' || substr(" + column + ", 9, 2) || ':' || substr(" + column + ", 11, 2) || ':' || substr(" + column + ", 13, 2),"
+                + " 'utc') AS INTEGER) * 1000";
+    }
+
+    // the first time >= from in the table, Long.MIN_VALUE if there is none
+    private static long firstTimeFrom(SQLiteDatabase db, String table, long from) {
+        Cursor cursor = db.rawQuery("SELECT MIN(time) FROM " + table + " WHERE time >= ?", new String[]{String.valueOf(from)});
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : Long.MIN_VALUE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{name});
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addAreaAggregateColumns(SQLiteDatabase db, String table) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN min_lat REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN max_lat REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN min_lon REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN max_lon REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN sum_lat REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN sum_lon REAL");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN samples INTEGER");
+    }
+
+    /**
+     * Recompute the area aggregates (bounding box, coordinate sums and sample count) of
+     * DETECTEDCELLS and DETECTEDTOWERS from the signal history, and move every row to the
+     * center of its area. Rows without any history keep their position as a single sample.
+     * Must run inside a transaction.
+     *
+     * @param samples SQL of the partial aggregates LAC, CID, min_lat, max_lat, min_lon, max_lon,
+     *                sum_lat, sum_lon, samples to combine, single samples come from pointsOf()
+     */
+    static void rebuildAreaAggregates(SQLiteDatabase db, String samples) {
+        String history = "(" + samples + ")";
+        db.execSQL("DROP TABLE IF EXISTS temp.cell_area");
+        db.execSQL("DROP TABLE IF EXISTS temp.tower_area");
+        db.execSQL("CREATE TEMP TABLE cell_area AS SELECT LAC, CID AS ID," + AREA_AGGREGATE_SELECT
+                + " FROM " + history + " GROUP BY LAC, CID");
+        // same tower id as Cell.getTowerId()
+        db.execSQL("CREATE TEMP TABLE tower_area AS SELECT LAC, (CASE WHEN CID > 0 THEN CID / 10 ELSE 0 END) AS ID,"
+                + AREA_AGGREGATE_SELECT + " FROM " + history + " GROUP BY 1, 2");
+        db.execSQL("CREATE INDEX temp.cell_area_idx ON cell_area (LAC, ID)");
+        db.execSQL("CREATE INDEX temp.tower_area_idx ON tower_area (LAC, ID)");
+
+        updateAreaAggregates(db, TowerConstant.detectedCellTable, "CID", "cell_area");
+        updateAreaAggregates(db, TowerConstant.detectedTowerTable, "TOWER", "tower_area");
+
+        db.execSQL("DROP TABLE temp.cell_area");
+        db.execSQL("DROP TABLE temp.tower_area");
+    }
+
+    private static final String AREA_AGGREGATE_SELECT = " MIN(min_lat) AS min_lat, MAX(max_lat) AS max_lat,"
+            + " MIN(min_lon) AS min_lon, MAX(max_lon) AS max_lon,"
+            + " TOTAL(sum_lat) AS sum_lat, TOTAL(sum_lon) AS sum_lon, SUM(samples) AS samples";
+
+    // every row of a history table as the aggregate of one sample, for rebuildAreaAggregates()
+    static String pointsOf(String table) {
+        return "SELECT LAC, CID, gps_lat AS min_lat, gps_lat AS max_lat, gps_lon AS min_lon, gps_lon AS max_lon,"
+                + " gps_lat AS sum_lat, gps_lon AS sum_lon, 1 AS samples FROM " + table;
+    }
+
+    private static void updateAreaAggregates(SQLiteDatabase db, String table, String idColumn, String areaTable) {
+        String match = " FROM " + areaTable + " a WHERE a.LAC = " + table + ".LAC AND a.ID = " + table + "." + idColumn + ")";
+        db.execSQL("UPDATE " + table + " SET"
+                + " min_lat = COALESCE((SELECT a.min_lat" + match + ", gps_lat),"
+                + " max_lat = COALESCE((SELECT a.max_lat" + match + ", gps_lat),"
+                + " min_lon = COALESCE((SELECT a.min_lon" + match + ", gps_lon),"
+                + " max_lon = COALESCE((SELECT a.max_lon" + match + ", gps_lon),"
+                + " sum_lat = COALESCE((SELECT a.sum_lat" + match + ", gps_lat),"
+                + " sum_lon = COALESCE((SELECT a.sum_lon" + match + ", gps_lon),"
+                + " samples = COALESCE((SELECT a.samples" + match + ", 1)");
+        db.execSQL("UPDATE " + table + " SET gps_lat = (min_lat + max_lat) / 2, gps_lon = (min_lon + max_lon) / 2");
     }
 
     public void createDataBase() throws IOException
@@ -87,16 +420,19 @@ public class DataBaseHelper extends SQLiteOpenHelper
     //Check that the database exists here: /data/data/your package/databases/Da Name
     private boolean checkDataBase()
     {
-        File dbFile = new File(DB_PATH + DB_NAME);
+        File dbFile = new File(mDbPath + mDbName);
         //Log.v("dbFile", dbFile + "   "+ dbFile.exists());
         return dbFile.exists();
     }
 
     //Copy the database from assets
-    private void copyDataBase() throws IOException
+    void copyDataBase() throws IOException
     {
         InputStream mInput = mContext.getAssets().open(DB_NAME);
-        String outFileName = DB_PATH + DB_NAME;
+        String outFileName = mDbPath + mDbName;
+        // a log left by the empty database must not be replayed over the copy
+        new File(outFileName + "-wal").delete();
+        new File(outFileName + "-shm").delete();
         OutputStream mOutput = new FileOutputStream(outFileName);
         byte[] mBuffer = new byte[1024];
         int mLength;
@@ -112,7 +448,7 @@ public class DataBaseHelper extends SQLiteOpenHelper
     //Open the database, so we can query it
     public boolean openDataBase() throws SQLException
     {
-        String mPath = DB_PATH + DB_NAME;
+        String mPath = mDbPath + mDbName;
         //Log.v("mPath", mPath);
         mDataBase = SQLiteDatabase.openDatabase(mPath, null, SQLiteDatabase.CREATE_IF_NECESSARY);
         //mDataBase = SQLiteDatabase.openDatabase(mPath, null, SQLiteDatabase.NO_LOCALIZED_COLLATORS);
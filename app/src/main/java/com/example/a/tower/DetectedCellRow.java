@@ -0,0 +1,74 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+
+/**
+ * A row of DETECTEDCELLS as shown by the list of detected cells.
+ *
+ * Only the LIST_COLUMNS are queried. The Reader looks up the column indices once per cursor
+ * and reads every row into the same holder, the list turns it into its item before the next.
+ */
+public class DetectedCellRow {
+    public static final String[] LIST_COLUMNS = {
+            DBTableColumnIds.DBI_BTS_MCC,
+            DBTableColumnIds.DBI_BTS_MNC,
+            DBTableColumnIds.DBI_BTS_LAC,
+            DBTableColumnIds.DBI_BTS_CID,
+            DBTableColumnIds.DBI_BTS_PSC,
+            DBTableColumnIds.DBI_BTS_TIME_FIRST,
+            DBTableColumnIds.DBI_BTS_TIME_LAST,
+            DBTableColumnIds.DBI_BTS_LAT,
+            DBTableColumnIds.DBI_BTS_LON,
+    };
+
+    public int mcc;
+    public int mnc;
+    public int lac;
+    public int cid;
+    public int psc;
+    // epoch milliseconds
+    public long timeFirst;
+    public long timeLast;
+    public double lat;
+    public double lon;
+
+    public static class Reader {
+        private final Cursor mCursor;
+        private final int mMcc;
+        private final int mMnc;
+        private final int mLac;
+        private final int mCid;
+        private final int mPsc;
+        private final int mTimeFirst;
+        private final int mTimeLast;
+        private final int mLat;
+        private final int mLon;
+
+        public Reader(Cursor cursor) {
+            mCursor = cursor;
+            mMcc = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_MCC);
+            mMnc = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_MNC);
+            mLac = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_LAC);
+            mCid = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_CID);
+            mPsc = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_PSC);
+            mTimeFirst = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_TIME_FIRST);
+            mTimeLast = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_TIME_LAST);
+            mLat = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_LAT);
+            mLon = cursor.getColumnIndexOrThrow(DBTableColumnIds.DBI_BTS_LON);
+        }
+
+        // the current row into the holder
+        public DetectedCellRow read(DetectedCellRow row) {
+            row.mcc = mCursor.getInt(mMcc);
+            row.mnc = mCursor.getInt(mMnc);
+            row.lac = mCursor.getInt(mLac);
+            row.cid = mCursor.getInt(mCid);
+            row.psc = mCursor.getInt(mPsc);
+            row.timeFirst = mCursor.getLong(mTimeFirst);
+            row.timeLast = mCursor.getLong(mTimeLast);
+            row.lat = mCursor.getDouble(mLat);
+            row.lon = mCursor.getDouble(mLon);
+            return row;
+        }
+    }
+}
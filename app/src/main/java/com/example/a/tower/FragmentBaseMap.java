@@ -6,13 +6,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
+import android.graphics.drawable.GradientDrawable;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.TypedValue;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,7 +40,7 @@ import com.baidu.mapapi.VersionInfo;
 import com.baidu.mapapi.map.BaiduMap;
 import com.baidu.mapapi.map.BitmapDescriptor;
 import com.baidu.mapapi.map.BitmapDescriptorFactory;
-import com.baidu.mapapi.map.CircleOptions;
+import com.baidu.mapapi.map.GroundOverlay;
 import com.baidu.mapapi.map.GroundOverlayOptions;
 import com.baidu.mapapi.map.InfoWindow;
 import com.baidu.mapapi.map.MapStatus;
@@ -40,18 +51,14 @@ import com.baidu.mapapi.map.Marker;
 import com.baidu.mapapi.map.MarkerOptions;
 import com.baidu.mapapi.map.MyLocationConfiguration;
 import com.baidu.mapapi.map.MyLocationData;
-import com.baidu.mapapi.map.Overlay;
-import com.baidu.mapapi.map.OverlayOptions;
-import com.baidu.mapapi.map.Stroke;
 import com.baidu.mapapi.model.LatLng;
 import com.baidu.mapapi.model.LatLngBounds;
 import com.baidu.mapapi.model.inner.GeoPoint;
 import com.baidu.mapapi.utils.DistanceUtil;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
 import java.lang.Math;
 /**
  * Created by a on 2016/4/1.
@@ -67,19 +74,70 @@ public class FragmentBaseMap extends Fragment {
     public MyLocationListenner myListener = new MyLocationListenner();
     private MyLocationConfiguration.LocationMode mCurrentMode;
     private LatLng mMyLocationLL;
-    private LinkedList<Overlay> mSignalPathList;
+    // the whole walk, the layer draws the part in view
+    private final SignalTrail mSignalTrail = new SignalTrail();
+    private SignalTrailLayer mSignalTrailLayer;
+    // dB a signal must go into the next band before the trail changes colour
+    private static final int TRAIL_HYSTERESIS = 3;
 
     public static final int BASE_STATIONS_REQUEST = 1;
     public StationsAsyncTask stationsAsyncTask;
-    private List<RegisteredBaseStation> mAllRegisteredStation;
+    private final Handler mViewportHandler = new Handler();
+    private CancellationSignal mViewportCancel;
+    // uptime of the first map change not drawn yet, 0 if none
+    private long mViewportRequestedAt;
+    private long mLastViewportLatency;
+    private long mMaxViewportLatency;
+    private long mTotalViewportLatency;
+    private int mViewportDraws;
+    private int mViewportCancels;
+    // hits of the registered station index, only used by the (serial) StationsAsyncTask
+    private int[] mStationHits = new int[1024];
+    // the registered stations drawn. A StationsAsyncTask fills the spare buffer, which takes
+    // their place when its result is drawn, so the two are reused from one viewport to the next
+    private StationBuffer mRegisteredStations;
+    private StationBuffer mSpareStations;
+    private final Object mStationBufferLock = new Object();
     //private List<Cell> mAllDetectedStation;
     private List<Tower> mAllDetectedStation;
-    private List<Marker> mRegisteredStationMakerList;
-    private List<Marker> mDetectedStationMakerList;
+    // the markers of the two layers, keyed by STATIONID and by (LAC, TID)
+    private MarkerReconciler mRegisteredMarkers;
+    private MarkerReconciler mDetectedMarkers;
+    // the serving cell the detected towers were last drawn with
+    private ServingCellState mServing = ServingCellState.EMPTY;
+    // the station list clustered for every zoom level, built with the list in the background
+    private StationClusterer mRegisteredClusterer;
+    private StationClusterer mDetectedClusterer;
+    // the level of detail of the last redraw, the marker budget per layer comes with it
+    private int mDetailLevel = MapDetailPolicy.ICONS;
+    // the station count per grid cell, drawn instead of the markers at the DENSITY level
+    private GroundOverlay mDensityOverlay;
+    private BitmapDescriptor mDensityImage;
+    // a density cell is larger than a cluster cell, so that no cell is left empty between clusters
+    private static final int DENSITY_CELL_PIXELS = 96;
+    // the dots of the single stations below the ICONS level, created once
+    private BitmapDescriptor mRegisteredDot;
+    private BitmapDescriptor mDetectedDot;
+    private BitmapDescriptor mServingDot;
+    // marker styles of the dots, apart from MarkerStyle and the tower styles 0 and 1
+    private static final int STYLE_DOT = 100;
+    private static final int STYLE_SERVING_DOT = 101;
+    // cluster icons by count label, see clusterLabel()
+    private final SparseArray<BitmapDescriptor> mClusterIcons = new SparseArray<>();
+
+    // the signal heatmap, one ground overlay rendered in the background
+    private GroundOverlay mHeatmapOverlay;
+    private BitmapDescriptor mHeatmapImage;
+    private HeatmapTask mHeatmapTask;
+    private SignalHeatmap.Raster mHeatmapRaster;
+    private int mHeatmapZoom;
+    // the last viewport, gps coordinates
+    private LatLng mViewportSouthWest;
+    private LatLng mViewportNorthEast;
+    // the same on the map
+    private LatLng mViewportMapSouthWest;
+    private LatLng mViewportMapNorthEast;
 
-    //static double BAIDU_OFFSET_LAT = 0.00374531687912;
-    static double BAIDU_OFFSET_LAT =  0.00360;
-    static double BAIDU_OFFSET_LONG = 0.01200;
 
     private InfoWindow mInfoWindow;
     private int currentCID;
@@ -132,6 +190,26 @@ public class FragmentBaseMap extends Fragment {
             .fromResource(R.drawable.icon_normal_base_station);
     BitmapDescriptor bdC = BitmapDescriptorFactory
             .fromResource(R.drawable.icon_orange_base_station);
+    private final ArrayList<BitmapDescriptor> mServingIcons = new ArrayList<>(Arrays.asList(bdA, bdB, bdC));
+
+    // the icon of each MarkerStyle
+    private final BitmapDescriptor[] mStationIcons = new BitmapDescriptor[MarkerStyle.COUNT];
+    {
+        mStationIcons[MarkerStyle.UNKNOWN] = bd_UNKNOWN;
+        mStationIcons[MarkerStyle.MOBILE_LTE] = bd_YL;
+        mStationIcons[MarkerStyle.MOBILE_GSM] = bd_YG;
+        mStationIcons[MarkerStyle.MOBILE_SCDMA] = bd_YS;
+        mStationIcons[MarkerStyle.UNICOM_WCDMA] = bd_LW;
+        mStationIcons[MarkerStyle.UNICOM_GSM] = bd_LG;
+        mStationIcons[MarkerStyle.UNICOM_SCDMA] = bd_LS;
+        mStationIcons[MarkerStyle.UNICOM_LTE] = bd_LL;
+        mStationIcons[MarkerStyle.UNICOM_CDMA] = bd_LC;
+        mStationIcons[MarkerStyle.TELECOM_GSM] = bd_DG;
+        mStationIcons[MarkerStyle.TELECOM_SCDMA] = bd_DS;
+        mStationIcons[MarkerStyle.TELECOM_LTE] = bd_DL;
+        mStationIcons[MarkerStyle.TELECOM_WCDMA] = bd_DW;
+        mStationIcons[MarkerStyle.TELECOM_CDMA] = bd_DC;
+    }
 
     /**
      * 构造广播监听类，监听 SDK key 验证以及网络异常广播
@@ -186,7 +264,10 @@ public class FragmentBaseMap extends Fragment {
         mMapView = (MapView) getActivity().findViewById(R.id.bmapView);
         mBaiduMap = mMapView.getMap();
         startMyLoc();
-        mSignalPathList = new LinkedList<Overlay>();
+        if (mSignalTrailLayer == null) {
+            // once per fragment, its polylines stay on the map from one start to the next
+            mSignalTrailLayer = new SignalTrailLayer(mBaiduMap, mSignalTrail);
+        }
         super.onStart();
     }
 
@@ -213,7 +294,17 @@ public class FragmentBaseMap extends Fragment {
         mMapView = null;
         // 取消监听 SDK 广播
         getActivity().unregisterReceiver(mReceiver);
-        stationsAsyncTask.cancel(true);
+        mViewportHandler.removeCallbacks(mViewportQuery);
+        cancelViewportQuery();
+        mHeatmapTask = null;
+        if (mHeatmapImage != null) {
+            mHeatmapImage.recycle();
+            mHeatmapImage = null;
+        }
+        if (mDensityImage != null) {
+            mDensityImage.recycle();
+            mDensityImage = null;
+        }
         super.onDestroy();
     }
 
@@ -283,22 +374,240 @@ public class FragmentBaseMap extends Fragment {
         }
     };
 
+    // map status events closer than this are merged into one viewport query
+    private static final long VIEWPORT_DEBOUNCE = 250;
+
+    /**
+     * Ask for the stations of the current viewport. The requests are debounced, and the query
+     * of an older viewport still running is cancelled: the latest viewport always wins.
+     */
     public void updateStationsOnMap() {
-        if (stationsAsyncTask != null && stationsAsyncTask.getStatus()!=AsyncTask.Status.FINISHED) {
-            //stationsAsyncTask.cancel(true);
-            // there is a task that not finished, so do nothing
+        if (mViewportRequestedAt == 0) {
+            mViewportRequestedAt = SystemClock.uptimeMillis();
+        }
+        mViewportHandler.removeCallbacks(mViewportQuery);
+        mViewportHandler.postDelayed(mViewportQuery, VIEWPORT_DEBOUNCE);
+    }
+
+    private final Runnable mViewportQuery = new Runnable() {
+        @Override
+        public void run() {
+            startViewportQuery();
+        }
+    };
+
+    private void startViewportQuery() {
+        if (mMapView == null || getActivity() == null) {
             return;
         }
-        stationsAsyncTask = new StationsAsyncTask();
+        if (mTowerService == null) {
+            mTowerService = ((MainActivity) getActivity()).getTowerService();
+        }
+        cancelViewportQuery();
+        // the projection is read here, it must not be used off the main thread
+        LatLng ll_West_South = mBaiduMap.getProjection().fromScreenLocation(new Point(0,mBaiduMap.getMapStatus().targetScreen.y*2));
+        LatLng ll_East_North = mBaiduMap.getProjection().fromScreenLocation(new Point(mBaiduMap.getMapStatus().targetScreen.x * 2, 0));
+        mViewportCancel = new CancellationSignal();
+        mViewportMapSouthWest = ll_West_South;
+        mViewportMapNorthEast = ll_East_North;
+        // the db holds gps coordinates, only the corners are converted back
+        double[] gps = new double[2];
+        CoordinateTransform.bd09ToWgs84(ll_West_South.latitude, ll_West_South.longitude, gps);
+        mViewportSouthWest = new LatLng(gps[0], gps[1]);
+        CoordinateTransform.bd09ToWgs84(ll_East_North.latitude, ll_East_North.longitude, gps);
+        mViewportNorthEast = new LatLng(gps[0], gps[1]);
+        stationsAsyncTask = new StationsAsyncTask(mViewportSouthWest, mViewportNorthEast,
+                mBaiduMap.getMapStatus().zoom, mViewportCancel);
         stationsAsyncTask.execute(BASE_STATIONS_REQUEST);
+        updateHeatmap();
+        // the trail around the viewport, half a screen on each side
+        double height = ll_East_North.latitude - ll_West_South.latitude;
+        double width = ll_East_North.longitude - ll_West_South.longitude;
+        mSignalTrailLayer.show(ll_West_South.latitude - height / 2, ll_East_North.latitude + height / 2,
+                ll_West_South.longitude - width / 2, ll_East_North.longitude + width / 2);
+    }
+
+    /**
+     * Render the heatmap of the last viewport again if the viewport left the raster, the zoom
+     * changed or new samples were recorded. The raster covers the viewport and half a screen
+     * around it, so short pans reuse it.
+     */
+    private void updateHeatmap() {
+        if (mTowerService == null || mViewportSouthWest == null) return;
+        SignalHeatmap heatmap = mTowerService.getSignalHeatmap();
+        int zoom = (int) mBaiduMap.getMapStatus().zoom;
+        SignalHeatmap.Raster raster = mHeatmapRaster;
+        if (raster != null && raster.version == heatmap.getVersion() && zoom == mHeatmapZoom
+                && raster.contains(mViewportSouthWest.latitude, mViewportNorthEast.latitude,
+                mViewportSouthWest.longitude, mViewportNorthEast.longitude)) {
+            return;
+        }
+        if (mHeatmapTask != null && mHeatmapTask.getStatus() != AsyncTask.Status.FINISHED) {
+            // rendered again once this one is drawn
+            return;
+        }
+        double height = mViewportNorthEast.latitude - mViewportSouthWest.latitude;
+        double width = mViewportNorthEast.longitude - mViewportSouthWest.longitude;
+        mHeatmapZoom = zoom;
+        mHeatmapTask = new HeatmapTask(heatmap, mViewportSouthWest.latitude - height / 2, mViewportNorthEast.latitude + height / 2,
+                mViewportSouthWest.longitude - width / 2, mViewportNorthEast.longitude + width / 2, zoom);
+        // not on the serial executor, the viewport queries must not wait behind a render
+        mHeatmapTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private class HeatmapTask extends AsyncTask<Void, Void, Bitmap> {
+        private final SignalHeatmap mHeatmap;
+        private final double mSouth;
+        private final double mNorth;
+        private final double mWest;
+        private final double mEast;
+        private final float mZoom;
+        private SignalHeatmap.Raster mRaster;
+
+        HeatmapTask(SignalHeatmap heatmap, double south, double north, double west, double east, float zoom) {
+            mHeatmap = heatmap;
+            mSouth = south;
+            mNorth = north;
+            mWest = west;
+            mEast = east;
+            mZoom = zoom;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            mRaster = mHeatmap.render(mSouth, mNorth, mWest, mEast, mZoom);
+            if (mRaster.isEmpty()) {
+                return null;
+            }
+            int[] colors = new int[mRaster.dbm.length];
+            for (int i = 0; i < colors.length; i++) {
+                // transparent where nothing was recorded
+                colors[i] = mRaster.dbm[i] == 0 ? Color.TRANSPARENT : signalColor(mRaster.dbm[i]);
+            }
+            return Bitmap.createBitmap(colors, mRaster.width, mRaster.height, Bitmap.Config.ARGB_8888);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            super.onPostExecute(bitmap);
+            if (getActivity() == null || mMapView == null || this != mHeatmapTask) {
+                return; // fragment detached
+            }
+            if (bitmap == null) {
+                // nothing recorded around the viewport, no overlay until something is
+                if (mHeatmapOverlay != null) {
+                    mHeatmapOverlay.remove();
+                    mHeatmapOverlay = null;
+                }
+                if (mHeatmapImage != null) {
+                    mHeatmapImage.recycle();
+                    mHeatmapImage = null;
+                }
+                mHeatmapRaster = mRaster;
+                updateHeatmap();
+                return;
+            }
+            double[] corner = new double[2];
+            LatLngBounds.Builder builder = new LatLngBounds.Builder();
+            CoordinateTransform.wgs84ToBd09(mRaster.south, mRaster.west, corner);
+            builder.include(new LatLng(corner[0], corner[1]));
+            CoordinateTransform.wgs84ToBd09(mRaster.north, mRaster.east, corner);
+            builder.include(new LatLng(corner[0], corner[1]));
+            LatLngBounds bounds = builder.build();
+            BitmapDescriptor image = BitmapDescriptorFactory.fromBitmap(bitmap);
+            if (mHeatmapOverlay == null) {
+                mHeatmapOverlay = (GroundOverlay) mBaiduMap.addOverlay(new GroundOverlayOptions()
+                        .positionFromBounds(bounds).image(image).transparency(0.6f).zIndex(1));
+            } else {
+                mHeatmapOverlay.setImage(image);
+                mHeatmapOverlay.setPositionFromBounds(bounds);
+            }
+            if (mHeatmapImage != null) {
+                mHeatmapImage.recycle();
+            }
+            mHeatmapImage = image;
+            mHeatmapRaster = mRaster;
+            // the viewport may have moved on while rendering
+            updateHeatmap();
+        }
+    }
+
+    private void cancelViewportQuery() {
+        if (stationsAsyncTask != null && stationsAsyncTask.getStatus() != AsyncTask.Status.FINISHED) {
+            stationsAsyncTask.cancel(false);
+            mViewportCancel.cancel();
+            mViewportCancels++;
+        }
+        stationsAsyncTask = null;
+    }
+
+    /**
+     * The registered stations of a viewport, the columns the map draws, see mRegisteredStations.
+     * The arrays only grow, a buffer is refilled for every viewport.
+     */
+    private static class StationBuffer {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        int count;
+        int[] stationId = new int[INITIAL_CAPACITY];
+        double[] mapLat = new double[INITIAL_CAPACITY];
+        double[] mapLon = new double[INITIAL_CAPACITY];
+        int[] style = new int[INITIAL_CAPACITY];
+
+        void clear() {
+            count = 0;
+        }
+
+        void add(int id, double lat, double lon, int markerStyle) {
+            if (count == stationId.length) {
+                int capacity = count * 2;
+                stationId = Arrays.copyOf(stationId, capacity);
+                mapLat = Arrays.copyOf(mapLat, capacity);
+                mapLon = Arrays.copyOf(mapLon, capacity);
+                style = Arrays.copyOf(style, capacity);
+            }
+            stationId[count] = id;
+            mapLat[count] = lat;
+            mapLon[count] = lon;
+            style[count] = markerStyle;
+            count++;
+        }
     }
 
     private class StationsAsyncTask extends AsyncTask<Integer, Void, Boolean> {
+        private final LatLng mSouthWest;
+        private final LatLng mNorthEast;
+        private final float mZoom;
+        private final CancellationSignal mCancellationSignal;
+        // the results, handed over to the fragment on the main thread
+        private StationBuffer mRegistered;
+        private StationClusterer mRegisteredClusters;
+        private List<Tower> mDetected;
+        private StationClusterer mDetectedClusters;
+
+        StationsAsyncTask(LatLng southWest, LatLng northEast, float zoom, CancellationSignal cancellationSignal) {
+            mSouthWest = southWest;
+            mNorthEast = northEast;
+            mZoom = zoom;
+            mCancellationSignal = cancellationSignal;
+        }
+
         @Override
         protected Boolean doInBackground(Integer... type) {
             switch (type[0]) {
                 case BASE_STATIONS_REQUEST:
-                    return getAllStations();
+                    try {
+                        mRegistered = obtainStationBuffer();
+                        getRegisteredBaseStations(mSouthWest, mNorthEast, mCancellationSignal, mRegistered);
+                        mRegisteredClusters = new StationClusterer(mRegistered.mapLat, mRegistered.mapLon, mRegistered.count);
+                        if (isCancelled()) return false;
+                        mDetected = getDetectedStations(mSouthWest, mNorthEast, mZoom, mCancellationSignal);
+                        mDetectedClusters = clusterDetectedStations(mDetected);
+                        return true;
+                    } catch (OperationCanceledException e) {
+                        // a newer viewport was asked for
+                        return false;
+                    }
             }
             return false;
         }
@@ -306,71 +615,208 @@ public class FragmentBaseMap extends Fragment {
         @Override
         protected void onPostExecute(Boolean result) {
             super.onPostExecute(result);
-            if (getActivity() == null) {
+            if (getActivity() == null || mMapView == null) {
+                recycleStationBuffer(mRegistered);
                 return; // fragment detached
             }
-            if (result) {
+            if (result && this == stationsAsyncTask) {
+                recycleStationBuffer(mRegisteredStations);
+                mRegisteredStations = mRegistered;
+                mRegisteredClusterer = mRegisteredClusters;
+                mAllDetectedStation = mDetected;
+                mDetectedClusterer = mDetectedClusters;
                 updateAllStations();
+                recordViewportLatency();
+            } else {
+                recycleStationBuffer(mRegistered);
             }
         }
-    }
 
-    public boolean getAllStations() {
-        if(getRegisteredBaseStations()) {
-            return getDetectedStations();
+        @Override
+        protected void onCancelled(Boolean result) {
+            recycleStationBuffer(mRegistered);
         }
-        else {
-            return false;
+    }
+
+    // from the first map change not drawn yet to its markers on the map
+    private void recordViewportLatency() {
+        if (mViewportRequestedAt == 0) return;
+        long latency = SystemClock.uptimeMillis() - mViewportRequestedAt;
+        mViewportRequestedAt = 0;
+        mViewportDraws++;
+        mLastViewportLatency = latency;
+        mTotalViewportLatency += latency;
+        if (latency > mMaxViewportLatency) {
+            mMaxViewportLatency = latency;
         }
     }
 
+    public long getLastViewportLatency() {
+        return mLastViewportLatency;
+    }
+
+    public String getViewportLatencyStats() {
+        return "last " + mLastViewportLatency + " ms, avg "
+                + (mViewportDraws == 0 ? 0 : mTotalViewportLatency / mViewportDraws)
+                + " ms, max " + mMaxViewportLatency + " ms, " + mViewportDraws + " draws, "
+                + mViewportCancels + " queries cancelled";
+    }
+
     public void updateAllStations() {
+        mDetailLevel = MapDetailPolicy.levelOf(mBaiduMap.getMapStatus().zoom);
+        updateDensityGrid();
         updateRegisteredBaseStations();
         updateDetectedStations();
+        showDetailStats();
     }
 
-    public boolean getRegisteredBaseStations() {
+    // the level of detail and the overlays drawn for it, shown under the connection info
+    public String getDetailStats() {
+        int registered = mRegisteredMarkers == null ? 0 : mRegisteredMarkers.size();
+        int detected = mDetectedMarkers == null ? 0 : mDetectedMarkers.size();
+        int density = mDensityOverlay == null ? 0 : 1;
+        int trail = mSignalTrailLayer.getSegmentCount();
+        return "LOD " + MapDetailPolicy.getName(mDetailLevel) + " (zoom " + mBaiduMap.getMapStatus().zoom
+                + "), overlays " + (registered + detected + density + trail) + ": registered " + registered
+                + ", detected " + detected + ", density " + density + ", trail " + trail;
+    }
 
-        mAllRegisteredStation = new ArrayList<>();
-        LatLng ll_West_South = mBaiduMap.getProjection().fromScreenLocation(new Point(0,mBaiduMap.getMapStatus().targetScreen.y*2));
-        LatLng ll_East_North = mBaiduMap.getProjection().fromScreenLocation(new Point(mBaiduMap.getMapStatus().targetScreen.x * 2, 0));
-        //Cursor cursor = mDbHelper.getStationsByGpsScope(ll_West_South, ll_East_North);
-        if (mTowerService == null) {
-            mTowerService = ((MainActivity) getActivity()).getTowerService();
+    private void showDetailStats() {
+        TextView text = (TextView) getActivity().findViewById(R.id.map_detail_info);
+        if (text != null) {
+            text.setText(getDetailStats());
         }
-        Cursor cursor = mTowerService.getSingletonDbAdapater().getStationsByGpsScope(TowerConstant.registeredStationTable, new LatLng(ll_West_South.latitude - BAIDU_OFFSET_LAT, ll_West_South.longitude - BAIDU_OFFSET_LONG), new LatLng(ll_East_North.latitude - BAIDU_OFFSET_LAT, ll_East_North.longitude - BAIDU_OFFSET_LAT));
-        int i = 0;
-        if (cursor.moveToFirst()) {
-            do {
-                i++;
-                RegisteredBaseStation station = new RegisteredBaseStation();
-                station.STATIONID = cursor.getInt(0);
-                station.TID = cursor.getString(1);
-                station.SID = cursor.getString(2);
-                station.BELONGING = cursor.getString(3);
-                station.LINKMAN = cursor.getString(4);
-                station.PHONE = cursor.getString(5);
-                station.TEL = cursor.getInt(6);
-                station.NETNAME = cursor.getString(7);
-                station.SERVICEATTRIBUTE = cursor.getString(8);
-                station.TECNAME = cursor.getString(9);
-                station.NAME = cursor.getString(10);
-                station.LOCATION = cursor.getString(11);
-                station.LONGITUDE = cursor.getDouble(12);
-                station.LATITUDE = cursor.getDouble(13);
-                station.HEIGHT = cursor.getString(14);
-                station.EQUIPMENT = cursor.getInt(15);
-                station.STATE = cursor.getString(16);
-                station.STARTDATA = cursor.getString(17);
-                station.STARTFRE = cursor.getDouble(18);
-                station.ENDFRE = cursor.getDouble(19);
+    }
 
-                //Log.d("data..........H", String.valueOf(cursor.getDouble(12)) + String.valueOf(cursor.getDouble(13)));
-                mAllRegisteredStation.add(station);
-            } while (cursor.moveToNext());
+    /**
+     * At the DENSITY level, draw the stations of both layers as counts on a grid over the
+     * viewport, one ground overlay. The counts come from the clusters of the zoom.
+     */
+    private void updateDensityGrid() {
+        if (mDetailLevel != MapDetailPolicy.DENSITY || mViewportMapSouthWest == null) {
+            if (mDensityOverlay != null) {
+                mDensityOverlay.remove();
+                mDensityOverlay = null;
+            }
+            if (mDensityImage != null) {
+                mDensityImage.recycle();
+                mDensityImage = null;
+            }
+            return;
+        }
+        Point screen = mBaiduMap.getMapStatus().targetScreen;
+        int columns = Math.max(1, screen.x * 2 / DENSITY_CELL_PIXELS);
+        int rows = Math.max(1, screen.y * 2 / DENSITY_CELL_PIXELS);
+        int[] counts = new int[columns * rows];
+        int zoom = (int) mBaiduMap.getMapStatus().zoom;
+        int max = Math.max(addDensity(mRegisteredClusterer, zoom, counts, columns, rows),
+                addDensity(mDetectedClusterer, zoom, counts, columns, rows));
+        int[] colors = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                // log scale, the cities would hide everything else
+                int alpha = 0x30 + (int) (0xB0 * Math.log1p(counts[i]) / Math.log1p(max));
+                colors[i] = (alpha << 24) | 0x1E88E5;
+            }
+        }
+        BitmapDescriptor image = BitmapDescriptorFactory.fromBitmap(
+                Bitmap.createBitmap(colors, columns, rows, Bitmap.Config.ARGB_8888));
+        LatLngBounds bounds = new LatLngBounds.Builder()
+                .include(mViewportMapSouthWest).include(mViewportMapNorthEast).build();
+        if (mDensityOverlay == null) {
+            mDensityOverlay = (GroundOverlay) mBaiduMap.addOverlay(new GroundOverlayOptions()
+                    .positionFromBounds(bounds).image(image).zIndex(2));
+        } else {
+            mDensityOverlay.setImage(image);
+            mDensityOverlay.setPositionFromBounds(bounds);
+        }
+        if (mDensityImage != null) {
+            mDensityImage.recycle();
+        }
+        mDensityImage = image;
+    }
+
+    // add the stations of the clusters to the grid of the viewport, row 0 is the north
+    private int addDensity(StationClusterer clusterer, int zoom, int[] counts, int columns, int rows) {
+        if (clusterer == null) return 0;
+        double south = mViewportMapSouthWest.latitude;
+        double west = mViewportMapSouthWest.longitude;
+        double height = mViewportMapNorthEast.latitude - south;
+        double width = mViewportMapNorthEast.longitude - west;
+        int max = 0;
+        for (StationClusterer.Cluster cluster : clusterer.getClusters(zoom)) {
+            int column = (int) ((cluster.lon - west) / width * columns);
+            int row = rows - 1 - (int) ((cluster.lat - south) / height * rows);
+            if (column < 0 || column >= columns || row < 0 || row >= rows) continue;
+            int i = row * columns + column;
+            counts[i] += cluster.count;
+            max = Math.max(max, counts[i]);
+        }
+        return max;
+    }
+
+    // a small filled circle, the icon of the single stations below the ICONS level
+    private BitmapDescriptor dotIcon(int color) {
+        int size = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 8, getResources().getDisplayMetrics());
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(color);
+        new Canvas(bitmap).drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        return BitmapDescriptorFactory.fromBitmap(bitmap);
+    }
+
+    // the registered stations strictly inside the bounds into the buffer
+    private void getRegisteredBaseStations(LatLng ll_West_South, LatLng ll_East_North, CancellationSignal cancellationSignal,
+                                           StationBuffer out) {
+        out.clear();
+        RegisteredStationIndex index = mTowerService.getRegisteredStationIndex();
+        if (index != null) {
+            // served from memory, the db is only read while the index is still loading
+            int count = index.query(ll_West_South.latitude, ll_East_North.latitude,
+                    ll_West_South.longitude, ll_East_North.longitude, mStationHits);
+            if (count > mStationHits.length) {
+                mStationHits = new int[count * 2];
+                count = index.query(ll_West_South.latitude, ll_East_North.latitude,
+                        ll_West_South.longitude, ll_East_North.longitude, mStationHits);
+            }
+            for (int i = 0; i < count; i++) {
+                int position = mStationHits[i];
+                out.add(index.getStationId(position), index.getMapLat(position), index.getMapLon(position),
+                        index.getStyle(position));
+            }
+            return;
+        }
+        Cursor cursor = mTowerService.getSingletonDbAdapater().getStationsByGpsScope(TowerConstant.registeredStationTable,
+                ll_West_South, ll_East_North, cancellationSignal);
+        try {
+            double[] map = new double[2];
+            while (cursor.moveToNext()) {
+                CoordinateTransform.wgs84ToBd09(cursor.getDouble(RegisteredBaseStation.MAP_LATITUDE),
+                        cursor.getDouble(RegisteredBaseStation.MAP_LONGITUDE), map);
+                out.add(cursor.getInt(RegisteredBaseStation.MAP_STATIONID), map[0], map[1],
+                        MarkerStyle.classify(cursor.getString(RegisteredBaseStation.MAP_NETNAME),
+                                cursor.getString(RegisteredBaseStation.MAP_TECNAME)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // a buffer for the next StationsAsyncTask, the spare one if it was not taken
+    private StationBuffer obtainStationBuffer() {
+        synchronized (mStationBufferLock) {
+            StationBuffer buffer = mSpareStations;
+            mSpareStations = null;
+            return buffer != null ? buffer : new StationBuffer();
+        }
+    }
+
+    // a buffer nobody draws from any more
+    private void recycleStationBuffer(StationBuffer buffer) {
+        if (buffer == null) return;
+        synchronized (mStationBufferLock) {
+            mSpareStations = buffer;
         }
-        // todo, should check if this process throw error
-        return true;
     }
 
     /*
@@ -401,225 +847,232 @@ public class FragmentBaseMap extends Fragment {
         return true;
     } */
 
-    // get from detectedTowerTable
-    public boolean getDetectedStations() {
+    // get from detectedTowerTable, through the tile cache of the service
+    public List<Tower> getDetectedStations(LatLng ll_West_South, LatLng ll_East_North, float zoom,
+                                           CancellationSignal cancellationSignal) {
+        return mTowerService.getDetectedTowerCache().get(ll_West_South.latitude, ll_East_North.latitude,
+                ll_West_South.longitude, ll_East_North.longitude, zoom, cancellationSignal);
+    }
 
-        mAllDetectedStation = new ArrayList<>();
-        LatLng ll_West_South = mBaiduMap.getProjection().fromScreenLocation(new Point(0,mBaiduMap.getMapStatus().targetScreen.y*2));
-        LatLng ll_East_North = mBaiduMap.getProjection().fromScreenLocation(new Point(mBaiduMap.getMapStatus().targetScreen.x * 2, 0));
-        //Cursor cursor = mDbHelper.getStationsByGpsScope(ll_West_South, ll_East_North);
-        Cursor cursor =  mTowerService.getSingletonDbAdapater().getStationsByGpsScope(TowerConstant.detectedTowerTable, new LatLng(ll_West_South.latitude - BAIDU_OFFSET_LAT, ll_West_South.longitude - BAIDU_OFFSET_LONG), new LatLng(ll_East_North.latitude - BAIDU_OFFSET_LAT, ll_East_North.longitude - BAIDU_OFFSET_LAT));
-        int i = 0;
-        if (cursor.moveToFirst()) {
-            do {
-                i++;
-                Tower tower = new Tower();
-                tower.setMnc(cursor.getInt(3));
-                tower.setLac(cursor.getInt(4));
-                tower.setTid(cursor.getInt(5)); //Tower Id
-                tower.setLat(cursor.getDouble(8));
-                tower.setLon(cursor.getDouble(9));
-                tower.setNetType(cursor.getInt(10));
-                //Log.d("data..........H", String.valueOf(cursor.getDouble(12)) + String.valueOf(cursor.getDouble(13)));
-                mAllDetectedStation.add(tower);
-            } while (cursor.moveToNext());
+    private static StationClusterer clusterDetectedStations(List<Tower> towers) {
+        int count = towers.size();
+        double[] lat = new double[count];
+        double[] lon = new double[count];
+        for (int j = 0; j < count; j++) {
+            lat[j] = towers.get(j).getMapLat();
+            lon[j] = towers.get(j).getMapLon();
         }
-        // todo, should check if this process throw error
-        return true;
+        return new StationClusterer(lat, lon, count);
     }
 
     public void updateRegisteredBaseStations() {
-        if (mAllRegisteredStation==null) return;
-        if (mAllRegisteredStation.size() > 390) {
-            // if we got too much stations, just use the random numbers of 390
-            // do something
-            //some wrong whith below code
-            /*
-            int listSize = mAllRegisteredStation.size();
-            Random randomGenerator = new Random();
-            while (listSize>390){
-                int randomInt = randomGenerator.nextInt(listSize-1);
-                Log.d("random number:", String.valueOf(randomInt));
-                mAllRegisteredStation.remove(randomInt);
-                listSize= mAllRegisteredStation.size();
-            }
-            */
-            // just simple return now, improve later
-            return;
-        }
-        // clear the markers firstly
-        if (mRegisteredStationMakerList!=null) {
-            for (Marker marker : mRegisteredStationMakerList) {
-                marker.remove();
-            }
-        }
-        mRegisteredStationMakerList = new ArrayList<>();
-        for(RegisteredBaseStation station : mAllRegisteredStation) {
-            LatLng llS = new LatLng(station.LATITUDE+ BAIDU_OFFSET_LAT, station.LONGITUDE + BAIDU_OFFSET_LONG);
-            String netName = station.NETNAME;
-            String tecName = station.TECNAME;
-            MarkerOptions ooS = new MarkerOptions().position(llS).icon(bd_UNKNOWN).zIndex(9).draggable(true);
-            if (netName.contains("移动")) {
-                if (tecName.contains("LTE")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_YL)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("GSM")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_YG)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("SCDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_YS)
-                            .zIndex(9).draggable(true);
-                }
-            }
-            else if (netName.contains("联通")) {
-                if (tecName.contains("WCDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_LW)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("GSM")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_LG)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("SCDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_LS)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("LTE")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_LL)
-                            .zIndex(9).draggable(true);
+        if (mRegisteredStations==null || mRegisteredClusterer==null) return;
+        if (mRegisteredMarkers == null) {
+            mRegisteredMarkers = new MarkerReconciler(mBaiduMap, new MarkerReconciler.Factory() {
+                @Override
+                public MarkerOptions createOptions(Object item) {
+                    StationClusterer.Cluster cluster = (StationClusterer.Cluster) item;
+                    if (!cluster.isSingle()) {
+                        return clusterMarkerOptions(cluster);
+                    }
+                    return registeredStationOptions(cluster.item);
                 }
-                else if (tecName.contains("CDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_LC)
-                            .zIndex(9).draggable(true);
-                }
-            }
-            else if (netName.contains("电信")) {
-                if (tecName.contains("GSM")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_DG)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("SCDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_DS)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("LTE")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_DL)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("WCDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_DW)
-                            .zIndex(9).draggable(true);
-                }
-                else if (tecName.contains("CDMA")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_DC)
-                            .zIndex(9).draggable(true);
+            });
+        }
+        // only the stations entering or leaving the viewport touch the overlays,
+        // no markers at the DENSITY level
+        mRegisteredMarkers.begin();
+        if (mDetailLevel != MapDetailPolicy.DENSITY) {
+            boolean icons = mDetailLevel == MapDetailPolicy.ICONS;
+            for (StationClusterer.Cluster cluster : mRegisteredClusterer.getBoundedClusters(mBaiduMap.getMapStatus().zoom,
+                    MapDetailPolicy.getMaxMarkers(mDetailLevel))) {
+                if (!cluster.isSingle()) {
+                    mRegisteredMarkers.update(cluster.key, clusterLabel(cluster.count), clusterPosition(cluster), cluster);
+                    continue;
                 }
+                int position = cluster.item;
+                LatLng llS = new LatLng(mRegisteredStations.mapLat[position], mRegisteredStations.mapLon[position]);
+                mRegisteredMarkers.update(mRegisteredStations.stationId[position],
+                        icons ? mRegisteredStations.style[position] : STYLE_DOT, llS, cluster);
             }
+        }
+        mRegisteredMarkers.end();
+    }
 
-            if (true) {
-                //掉下动画
-                ooS.animateType(MarkerOptions.MarkerAnimateType.none);
+    // the marker of the drawn registered station at the position
+    private MarkerOptions registeredStationOptions(int position) {
+        LatLng llS = new LatLng(mRegisteredStations.mapLat[position], mRegisteredStations.mapLon[position]);
+        if (mDetailLevel != MapDetailPolicy.ICONS) {
+            if (mRegisteredDot == null) {
+                mRegisteredDot = dotIcon(0xFF1E88E5);
             }
-            mRegisteredStationMakerList.add((Marker) (mBaiduMap.addOverlay(ooS)));
+            return new MarkerOptions().position(llS).icon(mRegisteredDot).zIndex(9)
+                    .animateType(MarkerOptions.MarkerAnimateType.none);
         }
-
+        //掉下动画: none
+        return new MarkerOptions().position(llS).icon(mStationIcons[mRegisteredStations.style[position]]).zIndex(9).draggable(true)
+                .animateType(MarkerOptions.MarkerAnimateType.none);
     }
 
 
     public void updateDetectedStations() {
-        if (mAllDetectedStation==null) return;
-        if (mAllDetectedStation.size() > 390) {
-            // if we got too much stations, just use the random numbers of 390
-            // do something
-            //some wrong whith below code
-            // just simple return now, improve later
-            return;
+        if (mAllDetectedStation==null || mDetectedClusterer==null) return;
+        if (mDetectedMarkers == null) {
+            mDetectedMarkers = new MarkerReconciler(mBaiduMap, new MarkerReconciler.Factory() {
+                @Override
+                public MarkerOptions createOptions(Object item) {
+                    StationClusterer.Cluster cluster = (StationClusterer.Cluster) item;
+                    if (!cluster.isSingle()) {
+                        return clusterMarkerOptions(cluster);
+                    }
+                    Tower tower = mAllDetectedStation.get(cluster.item);
+                    return detectedTowerOptions(tower, mServing.isTower(tower.getLac(), tower.getTid()));
+                }
+            });
         }
-        // clear the markers firstly
-        if (mDetectedStationMakerList!=null) {
-            for (Marker marker : mDetectedStationMakerList) {
-                marker.remove();
-            }
+        // read once per redraw, the service keeps it up to date without a telephony call here
+        mServing = mTowerService.getServingCellState();
+        if (mServing.isValid()) {
+            currentCID = mServing.getCid();
+            currentLAC = mServing.getLac();
+            currentDbm = mServing.getDbm();
         }
-        mDetectedStationMakerList = new ArrayList<>();
-        for(Tower tower : mAllDetectedStation) {
-            LatLng llS = new LatLng(tower.getLat()+ BAIDU_OFFSET_LAT, tower.getLon() + BAIDU_OFFSET_LONG);
-            int netNameId = tower.getMnc();
-            int tecNameId = tower.getNetType();
-
-            MarkerOptions ooS = new MarkerOptions().position(llS).icon(bd_UNKNOWN).zIndex(9).draggable(true);
-
-            /*
-            if (netNameId == 0 ) {//("移动")) {
-                if (tecName.contains("LTE")) {
-                    ooS = new MarkerOptions().position(llS).icon(bd_YL)
-                            .zIndex(9).draggable(true);
+        mDetectedMarkers.begin();
+        if (mDetailLevel != MapDetailPolicy.DENSITY) {
+            boolean icons = mDetailLevel == MapDetailPolicy.ICONS;
+            for (StationClusterer.Cluster cluster : mDetectedClusterer.getBoundedClusters(mBaiduMap.getMapStatus().zoom,
+                    MapDetailPolicy.getMaxMarkers(mDetailLevel))) {
+                if (!cluster.isSingle()) {
+                    mDetectedMarkers.update(cluster.key, clusterLabel(cluster.count), clusterPosition(cluster), cluster);
+                    continue;
                 }
-                // 联通 。。电信。。
-            }
-            */
-            if (true) {
-                // do not check the netname, tecName now, improve later.
-                ooS = new MarkerOptions().position(llS).icon(bd_NEW_YD_LTE).zIndex(9).draggable(true);
+                Tower tower = mAllDetectedStation.get(cluster.item);
+                LatLng llS = new LatLng(tower.getMapLat(), tower.getMapLon());
+                // the serving tower is drawn with another style, its marker is replaced when that changes
+                boolean serving = mServing.isTower(tower.getLac(), tower.getTid());
+                int style = icons ? (serving ? 1 : 0) : (serving ? STYLE_SERVING_DOT : STYLE_DOT);
+                mDetectedMarkers.update(towerKey(tower.getLac(), tower.getTid()), style, llS, cluster);
             }
+        }
+        mDetectedMarkers.end();
+    }
 
-            mTowerService.getCellTracker().refreshDevice();
-            Cell cell1 = mTowerService.getCell();
-            currentCID = cell1.getCid();
-            currentLAC = cell1.getLac();
-            currentDbm = cell1.getDbm();
-
-            if (tower.getTid() == cell1.getTowerId() && tower.getLac() == currentLAC) {
-                ArrayList<BitmapDescriptor> giflist = new ArrayList<BitmapDescriptor>();
-                giflist.add(bdA);
-                giflist.add(bdB);
-                giflist.add(bdC);
-                ooS = new MarkerOptions().position(llS).icons(giflist)
-                        .zIndex(0).period(10);
-            }
+    private static long towerKey(int lac, int tid) {
+        return ((long) lac << 32) | (tid & 0xFFFFFFFFL);
+    }
 
-            if (true) {
-                //掉下动画
-                ooS.animateType(MarkerOptions.MarkerAnimateType.none);
+    private MarkerOptions detectedTowerOptions(Tower tower, boolean serving) {
+        LatLng llS = new LatLng(tower.getMapLat(), tower.getMapLon());
+        if (mDetailLevel != MapDetailPolicy.ICONS) {
+            // no animation below the ICONS level, the serving tower is a dot of its own colour
+            if (mDetectedDot == null) {
+                mDetectedDot = dotIcon(0xFF43A047);
+                mServingDot = dotIcon(0xFFFF9900);
             }
-            mDetectedStationMakerList.add((Marker) (mBaiduMap.addOverlay(ooS)));
+            return new MarkerOptions().position(llS).icon(serving ? mServingDot : mDetectedDot).zIndex(9)
+                    .animateType(MarkerOptions.MarkerAnimateType.none);
+        }
+        MarkerOptions ooS;
+        if (serving) {
+            ooS = new MarkerOptions().position(llS).icons(mServingIcons)
+                    .zIndex(0).period(10);
+        } else {
+            // do not check the netname, tecName now, improve later.
+            ooS = new MarkerOptions().position(llS).icon(bd_NEW_YD_LTE).zIndex(9).draggable(true);
         }
+        //掉下动画
+        return ooS.animateType(MarkerOptions.MarkerAnimateType.none);
+    }
+
+    // the stations are clustered by their map position
+    private LatLng clusterPosition(StationClusterer.Cluster cluster) {
+        return new LatLng(cluster.lat, cluster.lon);
+    }
+
+    private MarkerOptions clusterMarkerOptions(StationClusterer.Cluster cluster) {
+        return new MarkerOptions().position(clusterPosition(cluster)).icon(clusterIcon(cluster.count)).zIndex(8)
+                .animateType(MarkerOptions.MarkerAnimateType.none);
     }
 
+    // exact counts below 10, then rounded down to 10, 20, 50, 100, 200, 500, 1000...
+    private static int clusterLabel(int count) {
+        if (count < 10) return count;
+        int step = 10;
+        while (true) {
+            if (count < step * 2) return step;
+            if (count < step * 5) return step * 2;
+            if (count < step * 10) return step * 5;
+            step *= 10;
+        }
+    }
 
+    // the icons are cached by label, drawing a view into a bitmap is too slow to do per marker
+    private BitmapDescriptor clusterIcon(int count) {
+        int label = clusterLabel(count);
+        BitmapDescriptor icon = mClusterIcons.get(label);
+        if (icon == null) {
+            int size = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                    label < 100 ? 32 : 40, getResources().getDisplayMetrics());
+            GradientDrawable circle = new GradientDrawable();
+            circle.setShape(GradientDrawable.OVAL);
+            circle.setColor(0xCC1E88E5);
+            circle.setStroke(2, Color.WHITE);
+            TextView view = new TextView(getActivity());
+            view.setWidth(size);
+            view.setHeight(size);
+            view.setGravity(Gravity.CENTER);
+            view.setTextColor(Color.WHITE);
+            view.setTextSize(TypedValue.COMPLEX_UNIT_SP, 12);
+            view.setBackground(circle);
+            view.setText(label < 10 ? String.valueOf(label) : label + "+");
+            icon = BitmapDescriptorFactory.fromView(view);
+            mClusterIcons.put(label, icon);
+        }
+        return icon;
+    }
 
     public void drawSignalOverlayOnMyLocation(LatLng newLocation) {
         // add signal path here
+        if (mTowerService != null && mTowerService.getServingCellState().isValid()) {
+            currentDbm = mTowerService.getServingCellState().getDbm();
+        }
         if(currentDbm==0) return;
         if (mMyLocationLL!=null && DistanceUtil.getDistance(mMyLocationLL, newLocation) < 50) return;
 
         if (newLocation!=null) {
-            int signalColor = calculateSignalColor();
-            OverlayOptions ooCircle = new CircleOptions().fillColor(0x00333300)
-                    .center(newLocation).stroke(new Stroke(5, signalColor))
-                    .radius(60);
-            Overlay overlay = mBaiduMap.addOverlay(ooCircle);
-            mSignalPathList.addFirst(overlay);
-            if(mSignalPathList.size() > 55) {
-                Overlay oldOverlay = mSignalPathList.removeLast();
-                oldOverlay.remove();
-            }
+            mSignalTrail.add(newLocation.latitude, newLocation.longitude, currentDbm, trailColor(currentDbm));
+            mSignalTrailLayer.append();
+            // the samples recorded on the way show up in the heatmap
+            updateHeatmap();
         }
         mMyLocationLL = newLocation;
     }
 
     public int calculateSignalColor() {
+        return signalColor(currentDbm);
+    }
+
+    // the colour band of the trail, kept while the signal stays near the band edge
+    private int trailColor(int dbm) {
+        int color = signalColor(dbm);
+        int last = mSignalTrail.getLastColor();
+        if (color != last && (signalColor(dbm + TRAIL_HYSTERESIS) == last || signalColor(dbm - TRAIL_HYSTERESIS) == last)) {
+            return last;
+        }
+        return color;
+    }
+
+    // the colour of a signal strength, also used by the heatmap
+    static int signalColor(int dbm) {
         //default value
         int color = 0xAA000000;
 
-        if (currentDbm>0) {
+        if (dbm>0) {
             color = 0xAAFF0000; //红色
             return  color;
         }
-        //else currentDbm <= 0
-        switch (currentDbm/10) {
+        //else dbm <= 0
+        switch (dbm/10) {
             case -11:
             case -10:
                 color = 0xAA003366;    //深蓝
@@ -674,14 +1127,22 @@ public class FragmentBaseMap extends Fragment {
 
     public  BaiduMap.OnMarkerClickListener markerListener = new BaiduMap.OnMarkerClickListener() {
         public boolean onMarkerClick(final Marker marker) {
-            int markerPos = mRegisteredStationMakerList.indexOf(marker);
-            if (markerPos > -1) {
-                return onRegisteredMarkerClick(marker,markerPos);
+            StationClusterer.Cluster cluster = mRegisteredMarkers == null ? null
+                    : (StationClusterer.Cluster) mRegisteredMarkers.getItem(marker);
+            if (cluster != null) {
+                if (!cluster.isSingle()) {
+                    return onClusterMarkerClick(marker, cluster);
+                }
+                return onRegisteredMarkerClick(marker, cluster.item);
             }
             else  {
-                markerPos = mDetectedStationMakerList.indexOf(marker);
-                if (markerPos > -1) {
-                    return onDetectedMarkerClick(marker, markerPos);
+                cluster = mDetectedMarkers == null ? null
+                        : (StationClusterer.Cluster) mDetectedMarkers.getItem(marker);
+                if (cluster != null) {
+                    if (!cluster.isSingle()) {
+                        return onClusterMarkerClick(marker, cluster);
+                    }
+                    return onDetectedMarkerClick(marker, cluster.item);
                 }
                 else {
                     return false;
@@ -689,9 +1150,21 @@ public class FragmentBaseMap extends Fragment {
             }
         }
 
+        // zoom in until the cluster falls apart
+        public boolean onClusterMarkerClick(final Marker marker, StationClusterer.Cluster cluster) {
+            float zoom = Math.min(cluster.zoom + 2, StationClusterer.MAX_ZOOM);
+            mBaiduMap.animateMapStatus(MapStatusUpdateFactory.newLatLngZoom(marker.getPosition(), zoom));
+            return true;
+        }
+
         public boolean onRegisteredMarkerClick(final Marker marker, int markerPos) {
             //int markerPos = mRegisteredStationMakerList.indexOf(marker);
-            RegisteredBaseStation station = ((RegisteredBaseStation) (mAllRegisteredStation.get(markerPos)));
+            // the popup reads the whole row, the map only keeps what it draws
+            RegisteredBaseStation station = mTowerService.getSingletonDbAdapater()
+                    .getRegisteredStation(mRegisteredStations.stationId[markerPos]);
+            if (station == null) {
+                return false;
+            }
             String text = station.SID + "\n" +station.NETNAME + "\n"
                     + "频段：" + station.STARTFRE + "-" + station.ENDFRE + "\n"
                     + "经度：" + station.LONGITUDE + "\n"
@@ -719,13 +1192,8 @@ public class FragmentBaseMap extends Fragment {
             Tower tower = ((Tower) (mAllDetectedStation.get(markerPos)));
 
             String cids="";
-            Cursor cursor =  mTowerService.getSingletonDbAdapater().getDetectedCellsByTowerId(tower.getTid());
-            int i = 0;
-            if (cursor.moveToFirst()) {
-                do {
-                    i++;
-                    cids = cids + String.valueOf(cursor.getInt(6)) + "\n";
-                } while (cursor.moveToNext());
+            for (int cid : mTowerService.getSingletonDbAdapater().getCellIdsOfTower(tower.getTid())) {
+                cids = cids + String.valueOf(cid) + "\n";
             }
 
             String text = "运营商: " + tower.getReadMNC() + "\n"
@@ -5,7 +5,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
@@ -18,17 +17,17 @@ import android.widget.RelativeLayout;
 import android.widget.TableRow;
 import android.widget.TextView;
 
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by a on 2016/4/1.
  */
 public class FragmentCurrentNetwork extends Fragment implements SwipeRefreshLayout.OnRefreshListener{
-    public static final int STOCK_REQUEST = 1;
     private RelativeLayout swipeRefreshLayout;
     private Context mContext;
-    private List<Cell> allCells;
+    // the cells of the last sample, reused from one refresh to the next
+    private final Cell[] allCells = new Cell[CellSnapshot.MAX_CELLS];
+    private int mCellCount;
 
     @Nullable
     @Override
@@ -71,33 +70,16 @@ public class FragmentCurrentNetwork extends Fragment implements SwipeRefreshLayo
     }
 
     private void updateUI() {
-        new CellAsyncTask().execute(STOCK_REQUEST);
-    }
-
-
-    private class CellAsyncTask extends AsyncTask<Integer, Void, Boolean> {
-        @Override
-        protected Boolean doInBackground(Integer... type) {
-            switch (type[0]) {
-                case STOCK_REQUEST:
-                    return getStockNeighbouringCells();
-            }
-            return false;
-        }
-
-        @Override
-        protected void onPostExecute(Boolean result) {
-            super.onPostExecute(result);
-            if (result) {
-                updateStockNeighbouringCells();
-            }
+        if (getStockNeighbouringCells()) {
+            updateStockNeighbouringCells();
         }
     }
 
+    // the cells the service sampled last, a copy in memory, no telephony call
     boolean getStockNeighbouringCells() {
         TowerService ts = ((MainActivity) getActivity()).getTowerService();
-        allCells = ts.getCellTracker().getAllCells();
-        return allCells.size() > 0;
+        mCellCount = ts.getCellTracker().copyCells(allCells);
+        return mCellCount > 0;
     }
 
     void updateStockNeighbouringCells() {
@@ -111,13 +93,11 @@ public class FragmentCurrentNetwork extends Fragment implements SwipeRefreshLayo
         //@InjectView(R.id.neighbouring_total)
         TableRow mNeighbouringTotalView = (TableRow)  getView().findViewById(R.id.neighbouring_total);
 
-        if (allCells.size() != 0) {
+        if (mCellCount != 0) {
             BaseInflaterAdapter<CardItemData> adapter
                     = new BaseInflaterAdapter<>(new CellCardInflater());
-            int i = 1;
-            int total = allCells.size();
-            for (Cell cell : allCells) {
-                CardItemData data = new CardItemData(cell, i++ + " / " + total);
+            for (int i = 0; i < mCellCount; i++) {
+                CardItemData data = new CardItemData(allCells[i], (i + 1) + " / " + mCellCount);
                 adapter.addItem(data, false);
             }
             lv.setAdapter(adapter);
@@ -84,23 +84,21 @@ public class FragmentDetectedStations extends Fragment {
                     = new BaseInflaterAdapter<>(new UniqueBtsCardInflater());
             int count = tableData.getCount();
             tableData.moveToFirst();
+            DetectedCellRow.Reader reader = new DetectedCellRow.Reader(tableData);
+            DetectedCellRow row = new DetectedCellRow();
             do {
+                reader.read(row);
                 UniqueBtsItemData data = new UniqueBtsItemData(
-                        String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_MCC))),   // MCC
-                        String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_MNC))),   // MNC
-                        String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_LAC))),   // LAC
-                        String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_CID))),   // CID
-                        Cell.validatePscValue(
-                                this.getActivity().getBaseContext(),
-                                tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_PSC))),          // PSC
-                        //String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_T3212))), // T3212
-                        //String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_A5x))),   // A5x
-                        //String.valueOf(tableData.getInt(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_ST_id))), // ST_id
-                        tableData.getString(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_TIME_FIRST)),         // time_first
-                        tableData.getString(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_TIME_LAST)),          // time_last
-                        tableData.getString(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_LAT)),                // gps_lat
-                        tableData.getString(tableData.getColumnIndex(DBTableColumnIds.DBI_BTS_LON)),                // gps_lon
-                        (tableData.getPosition() + 1) + " / " + count                                               // item:  "n/X"
+                        String.valueOf(row.mcc),                                    // MCC
+                        String.valueOf(row.mnc),                                    // MNC
+                        String.valueOf(row.lac),                                    // LAC
+                        String.valueOf(row.cid),                                    // CID
+                        Cell.validatePscValue(this.getActivity().getBaseContext(), row.psc),   // PSC
+                        DataBaseAdapter.getTimeStamp(row.timeFirst),                // time_first
+                        DataBaseAdapter.getTimeStamp(row.timeLast),                 // time_last
+                        String.valueOf(row.lat),                                    // gps_lat
+                        String.valueOf(row.lon),                                    // gps_lon
+                        (tableData.getPosition() + 1) + " / " + count               // item:  "n/X"
                 );
                 adapter.addItem(data, false);
             }while (tableData.moveToNext());
@@ -60,6 +60,10 @@ public class FragmentPhoneInfo extends Fragment {
         TowerService ts = ((MainActivity) getActivity()).getTowerService();
         ts.getCellTracker().refreshDevice();
         Device mDevice = ts.getCellTracker().getDevice();
+        // the serving cell of the last sample, the device cell until then
+        ServingCellState serving = ts.getServingCellState();
+        int lac = serving.isValid() ? serving.getLac() : mDevice.mCell.getLac();
+        int cid = serving.isValid() ? serving.getCid() : mDevice.mCell.getCid();
 
         switch (mDevice.getPhoneID()) {
 
@@ -67,11 +71,11 @@ public class FragmentPhoneInfo extends Fragment {
             case TelephonyManager.PHONE_TYPE_SIP:   // Maybe bad!
             case TelephonyManager.PHONE_TYPE_GSM: {
                 content = (TextView)  getView().findViewById(R.id.network_lac);
-                content.setText(String.valueOf(ts.getCell().getLac()));//updateText(String.valueOf(mTowerService.getCell().getLAC()), ani);
+                content.setText(String.valueOf(lac));//updateText(String.valueOf(mTowerService.getCell().getLAC()), ani);
                 //tr = (TableRow) getView().findViewById(R.id.gsm_cellid);
                 //tr.setVisibility(View.VISIBLE);
                 content = (TextView)  getView().findViewById(R.id.network_cellid);
-                content.setText(String.valueOf(ts.getCell().getCid()));//updateText(String.valueOf(mTowerService.getCell().getCID()), ani);
+                content.setText(String.valueOf(cid));//updateText(String.valueOf(mTowerService.getCell().getCID()), ani);
                 break;
             }
         }
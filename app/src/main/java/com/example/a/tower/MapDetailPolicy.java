@@ -0,0 +1,42 @@
+package com.example.a.tower;
+
+/**
+ * Level of detail of the station layers of the base map, by zoom band.
+ *
+ * DENSITY draws no station markers, only one ground overlay with the station count per grid
+ * cell. CLUSTERS and DOTS draw the clusters of StationClusterer and the single stations as small
+ * dots, with a larger marker budget for DOTS. ICONS draws the single stations with their full
+ * icons and the animated serving tower. Every level has its marker budget per layer, the
+ * clusters fall back to a coarser level above it, so the overlay count is bounded at any zoom.
+ */
+public class MapDetailPolicy {
+    public static final int DENSITY = 0;
+    public static final int CLUSTERS = 1;
+    public static final int DOTS = 2;
+    public static final int ICONS = 3;
+
+    private static final String[] NAMES = {"density", "clusters", "dots", "icons"};
+    // lowest map zoom of each level
+    private static final float[] MIN_ZOOM = {0, 9, 13, 16};
+    // markers per layer
+    private static final int[] MAX_MARKERS = {0, 100, 400, 200};
+
+    private MapDetailPolicy() {
+    }
+
+    public static int levelOf(float zoom) {
+        int level = DENSITY;
+        while (level < ICONS && zoom >= MIN_ZOOM[level + 1]) {
+            level++;
+        }
+        return level;
+    }
+
+    public static int getMaxMarkers(int level) {
+        return MAX_MARKERS[level];
+    }
+
+    public static String getName(int level) {
+        return NAMES[level];
+    }
+}
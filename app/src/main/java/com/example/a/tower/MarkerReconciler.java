@@ -0,0 +1,136 @@
+package com.example.a.tower;
+
+import android.util.LongSparseArray;
+
+import com.baidu.mapapi.map.BaiduMap;
+import com.baidu.mapapi.map.Marker;
+import com.baidu.mapapi.map.MarkerOptions;
+import com.baidu.mapapi.model.LatLng;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the markers of one map layer in step with a keyed list of items.
+ *
+ * Each redraw is a pass: begin(), update() for every item in view, end(). A marker is only added
+ * for a key that was not drawn in the last pass, moved when the item position changed and
+ * re-created when its style changed (e.g. a tower became the serving tower). The markers of
+ * keys not updated in the pass are removed by end(). Panning therefore only touches the
+ * stations entering and leaving the viewport. Must be used on the main thread.
+ */
+public class MarkerReconciler {
+    public static final String TAG = "MarkerReconciler";
+
+    public interface Factory {
+        // options of a new marker for the item
+        MarkerOptions createOptions(Object item);
+    }
+
+    private static class Entry {
+        Marker marker;
+        int style;
+        double lat;
+        double lon;
+        Object item;
+        int pass;
+    }
+
+    private final BaiduMap mMap;
+    private final Factory mFactory;
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<>();
+    private final Map<Marker, Entry> mByMarker = new IdentityHashMap<>();
+    private int mPass;
+
+    // counters of the last pass
+    private int mAdded;
+    private int mRemoved;
+    private int mRestyled;
+    private int mMoved;
+
+    public MarkerReconciler(BaiduMap map, Factory factory) {
+        mMap = map;
+        mFactory = factory;
+    }
+
+    public void begin() {
+        mPass++;
+        mAdded = 0;
+        mRemoved = 0;
+        mRestyled = 0;
+        mMoved = 0;
+    }
+
+    /**
+     * Draw the item under its key, creating the marker only if needed.
+     * @param position only compared, the marker options of the factory give the position of a new marker
+     */
+    public void update(long key, int style, LatLng position, Object item) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        } else if (entry.marker != null && entry.style != style) {
+            removeMarker(entry);
+            mRestyled++;
+        }
+        entry.item = item;
+        entry.pass = mPass;
+        if (entry.marker == null) {
+            entry.marker = (Marker) mMap.addOverlay(mFactory.createOptions(item));
+            entry.style = style;
+            entry.lat = position.latitude;
+            entry.lon = position.longitude;
+            mByMarker.put(entry.marker, entry);
+            mAdded++;
+        } else if (entry.lat != position.latitude || entry.lon != position.longitude) {
+            entry.marker.setPosition(position);
+            entry.lat = position.latitude;
+            entry.lon = position.longitude;
+            mMoved++;
+        }
+    }
+
+    // remove the markers of the keys not updated since begin()
+    public void end() {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.valueAt(i);
+            if (entry.pass != mPass) {
+                removeMarker(entry);
+                mEntries.removeAt(i);
+                mRemoved++;
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < mEntries.size(); i++) {
+            removeMarker(mEntries.valueAt(i));
+        }
+        mEntries.clear();
+    }
+
+    // the item last drawn by the marker, null if the marker is not of this layer
+    public Object getItem(Marker marker) {
+        Entry entry = mByMarker.get(marker);
+        return entry == null ? null : entry.item;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private void removeMarker(Entry entry) {
+        if (entry.marker != null) {
+            mByMarker.remove(entry.marker);
+            entry.marker.remove();
+            entry.marker = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return size() + " markers, last pass +" + mAdded + " -" + mRemoved + " restyled " + mRestyled
+                + " moved " + mMoved;
+    }
+}
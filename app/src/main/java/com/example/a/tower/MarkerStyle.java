@@ -0,0 +1,69 @@
+package com.example.a.tower;
+
+/**
+ * Marker style of a registered station, its operator and technology as one small int.
+ *
+ * The station is classified once from NETNAME and TECNAME when it is read from the db (see
+ * RegisteredStationIndex), the map then takes the icon of the style from an array.
+ * The checks are those the map used to run per marker: the first matching technology of the
+ * operator wins, e.g. "TD-SCDMA" is SCDMA, not CDMA.
+ */
+public class MarkerStyle {
+    public static final int UNKNOWN = 0;
+
+    // 中国移动
+    public static final int MOBILE_LTE = 1;
+    public static final int MOBILE_GSM = 2;
+    public static final int MOBILE_SCDMA = 3;
+
+    // 中国联通
+    public static final int UNICOM_WCDMA = 4;
+    public static final int UNICOM_GSM = 5;
+    public static final int UNICOM_SCDMA = 6;
+    public static final int UNICOM_LTE = 7;
+    public static final int UNICOM_CDMA = 8;
+
+    // 中国电信
+    public static final int TELECOM_GSM = 9;
+    public static final int TELECOM_SCDMA = 10;
+    public static final int TELECOM_LTE = 11;
+    public static final int TELECOM_WCDMA = 12;
+    public static final int TELECOM_CDMA = 13;
+
+    // the number of styles, the size of a table indexed by style
+    public static final int COUNT = 14;
+
+    // the technologies checked per operator in this order, and the style of each
+    private static final String[] MOBILE_TECHS = {"LTE", "GSM", "SCDMA"};
+    private static final int[] MOBILE_STYLES = {MOBILE_LTE, MOBILE_GSM, MOBILE_SCDMA};
+    private static final String[] UNICOM_TECHS = {"WCDMA", "GSM", "SCDMA", "LTE", "CDMA"};
+    private static final int[] UNICOM_STYLES = {UNICOM_WCDMA, UNICOM_GSM, UNICOM_SCDMA, UNICOM_LTE, UNICOM_CDMA};
+    private static final String[] TELECOM_TECHS = {"GSM", "SCDMA", "LTE", "WCDMA", "CDMA"};
+    private static final int[] TELECOM_STYLES = {TELECOM_GSM, TELECOM_SCDMA, TELECOM_LTE, TELECOM_WCDMA, TELECOM_CDMA};
+
+    private MarkerStyle() {
+    }
+
+    public static int classify(String netName, String tecName) {
+        if (netName == null || tecName == null) {
+            return UNKNOWN;
+        }
+        if (netName.contains("移动")) {
+            return match(tecName, MOBILE_TECHS, MOBILE_STYLES);
+        } else if (netName.contains("联通")) {
+            return match(tecName, UNICOM_TECHS, UNICOM_STYLES);
+        } else if (netName.contains("电信")) {
+            return match(tecName, TELECOM_TECHS, TELECOM_STYLES);
+        }
+        return UNKNOWN;
+    }
+
+    private static int match(String tecName, String[] techs, int[] styles) {
+        for (int i = 0; i < techs.length; i++) {
+            if (tecName.contains(techs[i])) {
+                return styles[i];
+            }
+        }
+        return UNKNOWN;
+    }
+}
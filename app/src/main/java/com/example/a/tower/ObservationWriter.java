@@ -0,0 +1,311 @@
+package com.example.a.tower;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for the cell observations recorded by TowerService.
+ *
+ * Observations (one CellFix per GPS fix) are queued by the caller and written to the db by a
+ * dedicated thread, in one transaction per FLUSH_SAMPLES observations or FLUSH_INTERVAL ms,
+ * whichever comes first. When the queue is full the oldest observation is dropped and counted.
+ * A batch that fails to commit is kept and written again after FLUSH_INTERVAL, it is only dropped
+ * and counted after MAX_FLUSH_ATTEMPTS, the writer thread keeps running either way.
+ * The CellFix objects are recycled once written or dropped, callers take them from obtainFix()
+ * so that steady-state recording does not allocate.
+ */
+public class ObservationWriter {
+    public static final String TAG = "ObservationWriter";
+    private static final int QUEUE_CAPACITY = 512;
+    private static final int FLUSH_SAMPLES = 16;
+    private static final long FLUSH_INTERVAL = 5000;
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+    // attempts to commit a batch before it is dropped, e.g. while the db is busy or the disk full
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    // queued to ask the writer thread for an immediate flush
+    private static final CellFix FLUSH_MARKER = new CellFix(0, 0, 0, Collections.<Cell>emptyList());
+
+    public interface Listener {
+        /**
+         * Called on the writer thread once before the first observation is written, for the db
+         * work that must not run alongside onFlushed() or after shutdown().
+         */
+        void onStarted();
+
+        /**
+         * Called on the writer thread after a batch has been committed.
+         * @param towers the positions of the detected towers of the batch, before and after it,
+         *               valid until the listener returns
+         */
+        void onFlushed(int count, TowerPositions towers);
+    }
+
+    private final DataBaseAdapter mDbAdapter;
+    private final Listener mListener;
+    private final BlockingQueue<CellFix> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<CellFix> mBatch = new ArrayList<>(FLUSH_SAMPLES);
+    private final TowerPositions mTowerPositions = new TowerPositions();
+    private final BlockingQueue<CellFix> mFreeFixes = new ArrayBlockingQueue<>(QUEUE_CAPACITY + FLUSH_SAMPLES);
+    private final Thread mThread;
+    private volatile boolean mRunning;
+    private volatile String mImei;
+    // failed attempts to commit the current batch, writer thread only
+    private int mFlushAttempts;
+
+    // counters
+    private volatile long mWrittenCount;
+    // counted by the sampling thread in offer() and by the writer thread in dropBatch()
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile long mFlushCount;
+    private volatile long mFailedFlushCount;
+    private volatile long mLastFlushMillis;
+    private volatile long mMaxFlushMillis;
+    private volatile long mTotalFlushMillis;
+    private volatile long mAllocatedFixes;
+
+    public ObservationWriter(DataBaseAdapter dbAdapter, Listener listener) {
+        mDbAdapter = dbAdapter;
+        mListener = listener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    try {
+                        mListener.onStarted();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "onStarted >>" + e.toString());
+                    }
+                }
+                writeLoop();
+            }
+        }, TAG);
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    public void setImei(String imei) {
+        mImei = imei;
+    }
+
+    /**
+     * A reusable fix to be filled with CellFix.set() and queued with offer().
+     */
+    public CellFix obtainFix() {
+        CellFix fix = mFreeFixes.poll();
+        if (fix == null) {
+            mAllocatedFixes++;
+            fix = new CellFix();
+        }
+        return fix;
+    }
+
+    /**
+     * Queue one observation, never blocks. The fix must not be used by the caller afterwards.
+     * @return false if an older observation had to be dropped to make room, or the writer is stopped
+     */
+    public boolean offer(CellFix fix) {
+        if (!mRunning) {
+            mDroppedCount.incrementAndGet();
+            recycle(fix);
+            return false;
+        }
+        boolean dropped = false;
+        while (!mQueue.offer(fix)) {
+            CellFix oldest = mQueue.poll();
+            // a full queue is flushed anyway, the flush request goes without being counted
+            if (oldest != null && oldest != FLUSH_MARKER) {
+                recycle(oldest);
+                mDroppedCount.incrementAndGet();
+                dropped = true;
+            }
+        }
+        return !dropped;
+    }
+
+    // ask for the queued observations to be written now, e.g. before the map is refreshed
+    public void requestFlush() {
+        mQueue.offer(FLUSH_MARKER);
+    }
+
+    /**
+     * Stop accepting observations, write everything still queued and wait for the writer thread.
+     * Must be called before the DataBaseAdapter is closed.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.e(TAG, "shutdown: writer did not finish in time, " + mQueue.size() + " observations lost");
+        }
+        Log.i(TAG, "shutdown: " + toString());
+    }
+
+    private void writeLoop() {
+        long deadline = 0;
+        while (mRunning || !mQueue.isEmpty()) {
+            CellFix fix = null;
+            try {
+                long timeout = mBatch.isEmpty() ? FLUSH_INTERVAL : deadline - SystemClock.elapsedRealtime();
+                fix = mQueue.poll(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // woken up by shutdown(), drain what is left
+            }
+            if (fix == FLUSH_MARKER) {
+                if (!flush()) {
+                    deadline = SystemClock.elapsedRealtime() + FLUSH_INTERVAL;
+                }
+                continue;
+            }
+            if (fix != null) {
+                if (mBatch.isEmpty()) {
+                    deadline = SystemClock.elapsedRealtime() + FLUSH_INTERVAL;
+                }
+                mBatch.add(fix);
+            }
+            // a batch that failed waits for its deadline, however many fixes came in meanwhile
+            if ((mBatch.size() >= FLUSH_SAMPLES && mFlushAttempts == 0)
+                    || (!mBatch.isEmpty() && SystemClock.elapsedRealtime() >= deadline)) {
+                if (!flush()) {
+                    deadline = SystemClock.elapsedRealtime() + FLUSH_INTERVAL;
+                }
+            }
+        }
+        if (!flush()) {
+            dropBatch();
+        }
+    }
+
+    /**
+     * Commit the batch. On failure the batch is kept for the next attempt, or dropped once it
+     * failed MAX_FLUSH_ATTEMPTS times.
+     * @return false if the batch is still to be written
+     */
+    private boolean flush() {
+        if (mBatch.isEmpty()) {
+            return true;
+        }
+        int count = mBatch.size();
+        long start = SystemClock.elapsedRealtime();
+        mTowerPositions.clear();
+        try {
+            mDbAdapter.recordFixes(mBatch, mImei, mTowerPositions);
+        } catch (RuntimeException e) {
+            // SQLITE_BUSY, a full disk or a closed db, nothing of the batch was committed
+            mFailedFlushCount++;
+            mFlushAttempts++;
+            Log.e(TAG, "flush >>" + e.toString());
+            if (mFlushAttempts < MAX_FLUSH_ATTEMPTS) {
+                return false;
+            }
+            dropBatch();
+            return true;
+        }
+        mFlushAttempts = 0;
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        for (int i = 0; i < count; i++) {
+            recycle(mBatch.get(i));
+        }
+        mBatch.clear();
+
+        mWrittenCount += count;
+        mFlushCount++;
+        mLastFlushMillis = elapsed;
+        mTotalFlushMillis += elapsed;
+        if (elapsed > mMaxFlushMillis) {
+            mMaxFlushMillis = elapsed;
+        }
+        if (mListener != null) {
+            try {
+                mListener.onFlushed(count, mTowerPositions);
+            } catch (RuntimeException e) {
+                // the batch is committed, a failing listener must not stop the writer
+                Log.e(TAG, "onFlushed >>" + e.toString());
+            }
+        }
+        return true;
+    }
+
+    private void dropBatch() {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        Log.e(TAG, "flush: " + mBatch.size() + " observations dropped after " + mFlushAttempts + " attempts");
+        mDroppedCount.addAndGet(mBatch.size());
+        for (int i = 0; i < mBatch.size(); i++) {
+            recycle(mBatch.get(i));
+        }
+        mBatch.clear();
+        mFlushAttempts = 0;
+    }
+
+    private void recycle(CellFix fix) {
+        // only the fixes from obtainFix() are kept, a full pool just lets the fix go
+        if (fix.isReusable()) {
+            mFreeFixes.offer(fix);
+        }
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    // flushes that failed to commit, retried or dropped
+    public long getFailedFlushCount() {
+        return mFailedFlushCount;
+    }
+
+    public long getLastFlushMillis() {
+        return mLastFlushMillis;
+    }
+
+    public long getMaxFlushMillis() {
+        return mMaxFlushMillis;
+    }
+
+    // fixes created because the pool was empty, stays flat in steady state
+    public long getAllocatedFixes() {
+        return mAllocatedFixes;
+    }
+
+    public long getAverageFlushMillis() {
+        return mFlushCount == 0 ? 0 : mTotalFlushMillis / mFlushCount;
+    }
+
+    @Override
+    public String toString() {
+        return "queue " + getQueueDepth() + ", written " + mWrittenCount + ", dropped " + mDroppedCount.get()
+                + ", flushes " + mFlushCount + " (failed " + mFailedFlushCount + ", last " + mLastFlushMillis
+                + " ms, avg " + getAverageFlushMillis() + " ms, max " + mMaxFlushMillis + " ms), fixes allocated "
+                + mAllocatedFixes;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.a.tower;
+
+import android.os.Handler;
+import android.telephony.CellInfo;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Coalesces the radio events of the PhoneStateListener (signal strength, cell info and service
+ * state changes) into at most one snapshot of the visible cells per window.
+ *
+ * The first event of a burst opens the window, the events arriving within the window are merged
+ * and the snapshot is taken when it closes. If the last event of the window was onCellInfoChanged
+ * the delivered CellInfo list is parsed as is, otherwise the TelephonyManager is asked once.
+ * All methods must be called on the thread of the handler, the sampling thread of TowerService.
+ */
+public class RadioEventSampler {
+    public static final String TAG = "RadioEventSampler";
+    public static final long DEFAULT_WINDOW = 2000;
+    public static final long MIN_WINDOW = 500;
+
+    public interface Listener {
+        // called once per window with a snapshot that is not empty, valid until the next window
+        void onSnapshot(CellSnapshot snapshot, long time);
+    }
+
+    private final CellTracker mCellTracker;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private long mWindow = DEFAULT_WINDOW;
+    private boolean mScheduled;
+    private boolean mStopped;
+    // the cell info of the last event, null when a later event made it stale
+    private List<CellInfo> mPendingCellInfo;
+
+    // counters
+    private long mEventCount;
+    private long mSnapshotCount;
+    private long mQueryCount;
+
+    private final Runnable mSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            takeSnapshot();
+        }
+    };
+
+    public RadioEventSampler(CellTracker cellTracker, Handler handler, Listener listener) {
+        mCellTracker = cellTracker;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    public void setWindow(long window) {
+        mWindow = Math.max(window, MIN_WINDOW);
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    public void onCellInfoChanged(List<CellInfo> cellInfo) {
+        // some devices call back with null, the snapshot then falls back to a query
+        mPendingCellInfo = cellInfo;
+        schedule();
+    }
+
+    public void onSignalStrengthsChanged() {
+        // the dBm in the last delivered cell info is outdated now
+        mPendingCellInfo = null;
+        schedule();
+    }
+
+    public void onServiceStateChanged() {
+        mPendingCellInfo = null;
+        schedule();
+    }
+
+    public void stop() {
+        mStopped = true;
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mPendingCellInfo = null;
+        mScheduled = false;
+        Log.i(TAG, "stop: " + toString());
+    }
+
+    private void schedule() {
+        if (mStopped) {
+            return;
+        }
+        mEventCount++;
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mSnapshotRunnable, mWindow);
+        }
+    }
+
+    private void takeSnapshot() {
+        mScheduled = false;
+        CellSnapshot snapshot;
+        if (mPendingCellInfo != null) {
+            snapshot = mCellTracker.refreshSnapshot(mPendingCellInfo);
+        } else {
+            mQueryCount++;
+            snapshot = mCellTracker.refreshSnapshot();
+        }
+        mPendingCellInfo = null;
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        mSnapshotCount++;
+        mListener.onSnapshot(snapshot, snapshot.getTime());
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    public long getSnapshotCount() {
+        return mSnapshotCount;
+    }
+
+    public long getQueryCount() {
+        return mQueryCount;
+    }
+
+    @Override
+    public String toString() {
+        return "window " + mWindow + " ms, events " + mEventCount + ", snapshots " + mSnapshotCount
+                + ", telephony queries " + mQueryCount;
+    }
+}
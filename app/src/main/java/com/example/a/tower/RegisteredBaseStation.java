@@ -1,5 +1,7 @@
 package com.example.a.tower;
 
+import android.database.Cursor;
+
 /**
  * Created by a on 2016/4/12.
  */
@@ -28,4 +30,108 @@ public class RegisteredBaseStation {
     public RegisteredBaseStation()
     {
     }
+
+    // the columns read for the map, the station popup reads the whole row
+    public static final String[] MAP_COLUMNS = {"STATIONID", "NETNAME", "TECNAME", "LATITUDE", "LONGITUDE"};
+    // the index of each in MAP_COLUMNS
+    public static final int MAP_STATIONID = 0;
+    public static final int MAP_NETNAME = 1;
+    public static final int MAP_TECNAME = 2;
+    public static final int MAP_LATITUDE = 3;
+    public static final int MAP_LONGITUDE = 4;
+
+    /**
+     * Reads the rows of a cursor over REGISTEREDSTATIONS, of any projection. The column indices
+     * are looked up once per cursor, the columns the cursor does not have are left unset.
+     */
+    public static class Reader
+    {
+        private final Cursor mCursor;
+        private final int mStationId;
+        private final int mTid;
+        private final int mSid;
+        private final int mBelonging;
+        private final int mLinkman;
+        private final int mPhone;
+        private final int mTel;
+        private final int mNetName;
+        private final int mServiceAttribute;
+        private final int mTecName;
+        private final int mName;
+        private final int mLocation;
+        private final int mLongitude;
+        private final int mLatitude;
+        private final int mHeight;
+        private final int mEquipment;
+        private final int mState;
+        private final int mStartData;
+        private final int mStartFre;
+        private final int mEndFre;
+
+        public Reader(Cursor cursor)
+        {
+            mCursor = cursor;
+            mStationId = cursor.getColumnIndex("STATIONID");
+            mTid = cursor.getColumnIndex("TID");
+            mSid = cursor.getColumnIndex("SID");
+            mBelonging = cursor.getColumnIndex("BELONGING");
+            mLinkman = cursor.getColumnIndex("LINKMAN");
+            mPhone = cursor.getColumnIndex("PHONE");
+            mTel = cursor.getColumnIndex("TEL");
+            mNetName = cursor.getColumnIndex("NETNAME");
+            mServiceAttribute = cursor.getColumnIndex("SERVICEATTRIBUTE");
+            mTecName = cursor.getColumnIndex("TECNAME");
+            mName = cursor.getColumnIndex("NAME");
+            mLocation = cursor.getColumnIndex("LOCATION");
+            mLongitude = cursor.getColumnIndex("LONGITUDE");
+            mLatitude = cursor.getColumnIndex("LATITUDE");
+            mHeight = cursor.getColumnIndex("HEIGHT");
+            mEquipment = cursor.getColumnIndex("EQUIPMENT");
+            mState = cursor.getColumnIndex("STATE");
+            mStartData = cursor.getColumnIndex("STARTDATA");
+            mStartFre = cursor.getColumnIndex("STARTFRE");
+            mEndFre = cursor.getColumnIndex("ENDFRE");
+        }
+
+        // the current row into the station
+        public RegisteredBaseStation read(RegisteredBaseStation station)
+        {
+            station.STATIONID = getInt(mStationId);
+            station.TID = getString(mTid);
+            station.SID = getString(mSid);
+            station.BELONGING = getString(mBelonging);
+            station.LINKMAN = getString(mLinkman);
+            station.PHONE = getString(mPhone);
+            station.TEL = getInt(mTel);
+            station.NETNAME = getString(mNetName);
+            station.SERVICEATTRIBUTE = getString(mServiceAttribute);
+            station.TECNAME = getString(mTecName);
+            station.NAME = getString(mName);
+            station.LOCATION = getString(mLocation);
+            station.LONGITUDE = getDouble(mLongitude);
+            station.LATITUDE = getDouble(mLatitude);
+            station.HEIGHT = getString(mHeight);
+            station.EQUIPMENT = getInt(mEquipment);
+            station.STATE = getString(mState);
+            station.STARTDATA = getString(mStartData);
+            station.STARTFRE = getDouble(mStartFre);
+            station.ENDFRE = getDouble(mEndFre);
+            return station;
+        }
+
+        private int getInt(int column)
+        {
+            return column < 0 ? 0 : mCursor.getInt(column);
+        }
+
+        private double getDouble(int column)
+        {
+            return column < 0 ? 0 : mCursor.getDouble(column);
+        }
+
+        private String getString(int column)
+        {
+            return column < 0 ? null : mCursor.getString(column);
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * In-memory index of the registered stations, the static reference data of the asset db.
+ *
+ * Built once in the background from REGISTEREDSTATIONS, it only keeps what the map draws, in
+ * primitive columns: STATIONID, the position in WGS-84 and on the Baidu map, and the
+ * MarkerStyle of NETNAME and TECNAME. The popup of a station reads the rest from the db. The
+ * positions are kept in an implicit KD-tree: the columns are ordered so that the middle element
+ * of every range splits the range, alternately by latitude and longitude. A viewport query walks
+ * the tree with a preallocated stack and writes the hits into the caller's buffer, it does not
+ * allocate.
+ */
+public class RegisteredStationIndex {
+    public static final String TAG = "RegisteredStationIndex";
+    // deep enough for any tree of int-sized arrays
+    private static final int STACK_DEPTH = 64;
+
+    private final int mCount;
+    private final int[] mStationId;
+    private final double[] mLat;
+    private final double[] mLon;
+    private final double[] mMapLat;
+    private final double[] mMapLon;
+    private final int[] mStyle;
+    // lo, hi, depth of the ranges still to visit
+    private final int[] mStack = new int[STACK_DEPTH * 3];
+
+    private RegisteredStationIndex(int[] stationId, double[] lat, double[] lon, int[] style, int count) {
+        mCount = count;
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        build(lat, lon, order, 0, count, 0);
+
+        mStationId = new int[count];
+        mLat = new double[count];
+        mLon = new double[count];
+        mMapLat = new double[count];
+        mMapLon = new double[count];
+        mStyle = new int[count];
+        double[] map = new double[2];
+        for (int i = 0; i < count; i++) {
+            int row = order[i];
+            mStationId[i] = stationId[row];
+            mLat[i] = lat[row];
+            mLon[i] = lon[row];
+            mStyle[i] = style[row];
+            CoordinateTransform.wgs84ToBd09(mLat[i], mLon[i], map);
+            mMapLat[i] = map[0];
+            mMapLon[i] = map[1];
+        }
+    }
+
+    /**
+     * Read all the registered stations, to be called on a background thread.
+     * @return null if the table could not be read or the thread was interrupted
+     */
+    public static RegisteredStationIndex load(DataBaseAdapter dbAdapter) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = null;
+        try {
+            cursor = dbAdapter.getAllRegisteredStations();
+            int rows = cursor.getCount();
+            int[] stationId = new int[rows];
+            double[] lat = new double[rows];
+            double[] lon = new double[rows];
+            int[] style = new int[rows];
+            int count = 0;
+            while (count < rows && cursor.moveToNext() && !Thread.currentThread().isInterrupted()) {
+                stationId[count] = cursor.getInt(RegisteredBaseStation.MAP_STATIONID);
+                lat[count] = cursor.getDouble(RegisteredBaseStation.MAP_LATITUDE);
+                lon[count] = cursor.getDouble(RegisteredBaseStation.MAP_LONGITUDE);
+                style[count] = MarkerStyle.classify(cursor.getString(RegisteredBaseStation.MAP_NETNAME),
+                        cursor.getString(RegisteredBaseStation.MAP_TECNAME));
+                count++;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // the service is going away
+                Log.i(TAG, "load: interrupted after " + count + " stations");
+                return null;
+            }
+            RegisteredStationIndex index = new RegisteredStationIndex(stationId, lat, lon, style, count);
+            Log.i(TAG, "load: " + count + " stations in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return index;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "load >>" + e.toString());
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // an index of unstyled stations at the positions, STATIONID is the array index
+    static RegisteredStationIndex of(double[] lat, double[] lon) {
+        int[] stationId = new int[lat.length];
+        for (int i = 0; i < stationId.length; i++) {
+            stationId[i] = i;
+        }
+        return new RegisteredStationIndex(stationId, lat, lon, new int[lat.length], lat.length);
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * The stations strictly inside the bounds, same as DataBaseAdapter.getStationsByGpsScope.
+     * @param out receives the station positions (see getStationId), in no particular order
+     * @return the number of stations in the bounds, may be more than out.length, the hits that
+     * did not fit were not written
+     */
+    public synchronized int query(double south, double north, double west, double east, int[] out) {
+        int found = 0;
+        int top = 0;
+        if (mCount > 0) {
+            top = push(top, 0, mCount, 0);
+        }
+        while (top > 0) {
+            top -= 3;
+            int lo = mStack[top];
+            int hi = mStack[top + 1];
+            int depth = mStack[top + 2];
+            int mid = (lo + hi) >>> 1;
+            double lat = mLat[mid];
+            double lon = mLon[mid];
+            if (lat > south && lat < north && lon > west && lon < east) {
+                if (found < out.length) {
+                    out[found] = mid;
+                }
+                found++;
+            }
+            double value = (depth & 1) == 0 ? lat : lon;
+            double min = (depth & 1) == 0 ? south : west;
+            double max = (depth & 1) == 0 ? north : east;
+            // left holds the values <= value, right the values >= value
+            if (min <= value && lo < mid) {
+                top = push(top, lo, mid, depth + 1);
+            }
+            if (max >= value && mid + 1 < hi) {
+                top = push(top, mid + 1, hi, depth + 1);
+            }
+        }
+        return found;
+    }
+
+    public int getStationId(int position) {
+        return mStationId[position];
+    }
+
+    public double getLat(int position) {
+        return mLat[position];
+    }
+
+    public double getLon(int position) {
+        return mLon[position];
+    }
+
+    // the position on the Baidu map (BD-09)
+    public double getMapLat(int position) {
+        return mMapLat[position];
+    }
+
+    public double getMapLon(int position) {
+        return mMapLon[position];
+    }
+
+    public int getStyle(int position) {
+        return mStyle[position];
+    }
+
+    private int push(int top, int lo, int hi, int depth) {
+        mStack[top] = lo;
+        mStack[top + 1] = hi;
+        mStack[top + 2] = depth;
+        return top + 3;
+    }
+
+    // order[lo, hi) so that the median of the axis of the depth is in the middle, recursively
+    private static void build(double[] lat, double[] lon, int[] order, int lo, int hi, int depth) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            select((depth & 1) == 0 ? lat : lon, order, lo, hi - 1, mid);
+            build(lat, lon, order, lo, mid, depth + 1);
+            // the right side in the loop, the recursion stays as deep as the tree
+            lo = mid + 1;
+            depth++;
+        }
+    }
+
+    // quickselect, order[k] gets the k-th smallest value of order[left..right]
+    private static void select(double[] values, int[] order, int left, int right, int k) {
+        while (right > left) {
+            double pivot = values[order[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[order[i]] < pivot) i++;
+                while (values[order[j]] > pivot) j--;
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
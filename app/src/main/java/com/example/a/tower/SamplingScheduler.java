@@ -0,0 +1,151 @@
+package com.example.a.tower;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Chooses how often TowerService asks for GPS fixes and samples the radio.
+ *
+ * The profile follows the speed of the last fixes, it is raised when the serving cell changes
+ * often (a handover missed is a tower missed) and lowered when the battery is low and not
+ * charging. A faster profile is applied at once, a slower one only after the current profile
+ * has been held for PROFILE_HOLD ms so that a traffic light does not toggle the GPS.
+ * The GPS is requested with a min distance, no fix for a while means the phone stands still.
+ * All methods must be called on the sampling thread of TowerService.
+ */
+public class SamplingScheduler {
+    public static final String TAG = "SamplingScheduler";
+
+    public static final int PROFILE_STATIONARY = 0;
+    public static final int PROFILE_WALKING = 1;
+    public static final int PROFILE_DRIVING = 2;
+    public static final int PROFILE_HIGHWAY = 3;
+
+    private static final String[] PROFILE_NAMES = {"stationary", "walking", "driving", "highway"};
+    // GPS min time [ms], GPS min distance [m], radio sampling window [ms], per profile
+    private static final long[] GPS_INTERVAL = {30000, 10000, 3000, 1000};
+    private static final float[] GPS_DISTANCE = {25, 10, 20, 30};
+    private static final long[] RADIO_WINDOW = {5000, 2000, 1000, 500};
+    // upper speed bound [m/s] of the stationary, walking and driving profiles
+    private static final float[] SPEED_LIMIT = {0.5f, 3f, 22f};
+
+    private static final long HANDOVER_PERIOD = 60000;
+    private static final int HANDOVER_BUSY = 4;
+    private static final int LOW_BATTERY = 20;
+    private static final long PROFILE_HOLD = 30000;
+    private static final long FIX_MISSING = 10000;
+
+    public interface Listener {
+        void onProfileChanged(int profile, long gpsInterval, float gpsDistance, long radioWindow);
+    }
+
+    private final Listener mListener;
+    private int mProfile = PROFILE_WALKING;
+    private long mProfileSince = SystemClock.elapsedRealtime();
+
+    private float mSpeed = -1;
+    private Location mLastLocation;
+    private long mLastFixTime;
+    // the times of the last cell changes, a ring buffer
+    private final long[] mHandoverTimes = new long[HANDOVER_BUSY * 4];
+    private int mHandoverNext;
+    private int mBatteryLevel = 100;
+    private boolean mCharging = true;
+
+    public SamplingScheduler(Listener listener) {
+        mListener = listener;
+    }
+
+    public void onLocationChanged(Location location) {
+        if (location.hasSpeed()) {
+            mSpeed = location.getSpeed();
+        } else if (mLastLocation != null && location.getTime() > mLastLocation.getTime()) {
+            mSpeed = location.distanceTo(mLastLocation) * 1000f / (location.getTime() - mLastLocation.getTime());
+        }
+        mLastLocation = location;
+        mLastFixTime = SystemClock.elapsedRealtime();
+        evaluate();
+    }
+
+    // a radio sample was taken, gives the chance to notice that the fixes stopped coming
+    public void onRadioSample() {
+        evaluate();
+    }
+
+    // the serving cell or tower changed
+    public void onCellChanged() {
+        mHandoverTimes[mHandoverNext] = SystemClock.elapsedRealtime();
+        mHandoverNext = (mHandoverNext + 1) % mHandoverTimes.length;
+        evaluate();
+    }
+
+    public void onBatteryChanged(int level, boolean charging) {
+        if (level == mBatteryLevel && charging == mCharging) return;
+        mBatteryLevel = level;
+        mCharging = charging;
+        evaluate();
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public String getProfileName() {
+        return PROFILE_NAMES[mProfile];
+    }
+
+    public long getGpsInterval() {
+        return GPS_INTERVAL[mProfile];
+    }
+
+    public float getGpsDistance() {
+        return GPS_DISTANCE[mProfile];
+    }
+
+    public long getRadioWindow() {
+        return RADIO_WINDOW[mProfile];
+    }
+
+    public int getRecentHandovers() {
+        long since = SystemClock.elapsedRealtime() - HANDOVER_PERIOD;
+        int count = 0;
+        for (long time : mHandoverTimes) {
+            if (time > 0 && time >= since) count++;
+        }
+        return count;
+    }
+
+    private void evaluate() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastLocation != null && now - mLastFixTime > 3 * GPS_INTERVAL[mProfile] + FIX_MISSING) {
+            mSpeed = 0;
+        }
+        int profile = PROFILE_WALKING;
+        if (mSpeed >= 0) {
+            profile = PROFILE_HIGHWAY;
+            for (int i = 0; i < SPEED_LIMIT.length; i++) {
+                if (mSpeed < SPEED_LIMIT[i]) {
+                    profile = i;
+                    break;
+                }
+            }
+        }
+        if (getRecentHandovers() >= HANDOVER_BUSY && profile < PROFILE_DRIVING) {
+            profile++;
+        }
+        if (!mCharging && mBatteryLevel <= LOW_BATTERY && profile > PROFILE_STATIONARY) {
+            profile--;
+        }
+
+        if (profile == mProfile) return;
+        if (profile < mProfile && now - mProfileSince < PROFILE_HOLD) return;
+
+        Log.i(TAG, "profile " + PROFILE_NAMES[mProfile] + " -> " + PROFILE_NAMES[profile]
+                + " (speed " + mSpeed + " m/s, handovers " + getRecentHandovers()
+                + ", battery " + mBatteryLevel + "%" + (mCharging ? " charging" : "") + ")");
+        mProfile = profile;
+        mProfileSince = now;
+        mListener.onProfileChanged(profile, GPS_INTERVAL[profile], GPS_DISTANCE[profile], RADIO_WINDOW[profile]);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.a.tower;
+
+import lombok.Getter;
+
+/**
+ * The serving cell as last sampled by TowerService, immutable.
+ *
+ * TowerService publishes a new state whenever the sampled serving cell or its signal changes,
+ * the version grows by one with every state. Readers get the current state in O(1) through
+ * TowerService.getServingCellState() and should read it once per redraw, not per marker.
+ */
+@Getter
+public class ServingCellState {
+
+    public static final ServingCellState EMPTY = new ServingCellState(0, 0,
+            Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    /**
+     * 0 until the first cell was sampled
+     */
+    private final long version;
+
+    /**
+     * System.currentTimeMillis() of the sample
+     */
+    private final long time;
+
+    private final int cid;
+
+    private final int lac;
+
+    private final int mcc;
+
+    private final int mnc;
+
+    private final int dbm;
+
+    private final int netType;
+
+    public ServingCellState(long version, long time, int cid, int lac, int mcc, int mnc, int dbm, int netType) {
+        this.version = version;
+        this.time = time;
+        this.cid = cid;
+        this.lac = lac;
+        this.mcc = mcc;
+        this.mnc = mnc;
+        this.dbm = dbm;
+        this.netType = netType;
+    }
+
+    public boolean isValid() {
+        return version > 0;
+    }
+
+    // same rule as Cell.getTowerId()
+    public int getTowerId() {
+        return cid > 0 ? cid / 10 : 0;
+    }
+
+    public boolean isTower(int lac, int towerId) {
+        return isValid() && this.lac == lac && getTowerId() == towerId;
+    }
+
+    // the same cell with the same signal, no need to publish a new state
+    public boolean sameAs(CellSnapshot snapshot) {
+        return cid == snapshot.getCid(0) && lac == snapshot.getLac(0) && mcc == snapshot.getMcc(0)
+                && mnc == snapshot.getMnc(0) && dbm == snapshot.getDbm(0) && netType == snapshot.getNetType(0);
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The signal strength of the serving cell over the recorded history, on a geo grid.
+ *
+ * The RSS of the signal history is summed per cell of a fixed grid of about 20 m. The history
+ * past the retention of the raw days is read from the hourly rollups, each at the center of its
+ * samples, so the grid covers the whole recording. update() then only reads the samples recorded
+ * since the last update, by the last _id read of every day partition, so the grid follows the
+ * recording at the cost of the new samples. The grid cells are stored in tiles of TILE_CELLS x
+ * TILE_CELLS in primitive arrays, render() only visits the tiles of the viewport and averages
+ * their cells over a raster, coarse enough for the zoom, for the map to draw as one ground
+ * overlay. Both are meant to run on a background thread.
+ */
+public class SignalHeatmap {
+    public static final String TAG = "SignalHeatmap";
+    // the grid cell is 360 / 2^GRID_LEVEL degrees
+    private static final int GRID_LEVEL = 21;
+    private static final double GRID_CELL = 360.0 / (1 << GRID_LEVEL);
+    // a raster cell is at least this many screen pixels
+    private static final int RASTER_CELL_PIXELS = 8;
+    // at most this many raster cells per side
+    private static final int MAX_RASTER_SIZE = 256;
+    private static final int TILE_PIXELS = 256;
+    // a tile is TILE_CELLS x TILE_CELLS grid cells
+    private static final int TILE_SHIFT = 3;
+    private static final int TILE_CELLS = 1 << TILE_SHIFT;
+
+    /**
+     * The mean RSS of each raster cell, 0 where nothing was recorded. Row 0 is the north, dbm is
+     * null if nothing was recorded in the bounds.
+     */
+    public static class Raster {
+        public final double south;
+        public final double north;
+        public final double west;
+        public final double east;
+        public final int width;
+        public final int height;
+        public final int[] dbm;
+        // the grid version it was rendered from
+        public final int version;
+
+        Raster(double south, double north, double west, double east, int width, int height, int[] dbm, int version) {
+            this.south = south;
+            this.north = north;
+            this.west = west;
+            this.east = east;
+            this.width = width;
+            this.height = height;
+            this.dbm = dbm;
+            this.version = version;
+        }
+
+        public boolean contains(double south, double north, double west, double east) {
+            return south >= this.south && north <= this.north && west >= this.west && east <= this.east;
+        }
+
+        public boolean isEmpty() {
+            return dbm == null;
+        }
+    }
+
+    // the grid cells of a tile, row by row
+    private static class Tile {
+        final long x;
+        final long y;
+        final long[] sum = new long[TILE_CELLS * TILE_CELLS];
+        final int[] count = new int[TILE_CELLS * TILE_CELLS];
+
+        Tile(long x, long y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // keyed by tile x << 32 | tile y
+    private final Map<Long, Tile> mTiles = new HashMap<>();
+    // the tile of the last sample added, the next one is most likely in it too
+    private Tile mLastTile;
+    private int mBinCount;
+    // the last _id read of every day partition, the samples are not written in time order
+    private final Map<Integer, Long> mLastIds = new HashMap<>();
+    // whether the rollups have been read
+    private boolean mSeeded;
+    private long mSamples;
+    // grows with every update that added samples
+    private volatile int mVersion;
+
+    /**
+     * Add the samples written since the last update. The first update reads the whole history:
+     * the hourly rollups, then the raw rows of every day after its last rolled up _id. Must not
+     * run alongside SignalHistory.maintain(), see TowerService.
+     * @return the number of samples added
+     */
+    public synchronized int update(DataBaseAdapter dbAdapter) {
+        int added = 0;
+        Cursor cursor = null;
+        try {
+            List<SignalHistory.Partition> partitions = dbAdapter.getHistoryPartitions();
+            if (!mSeeded) {
+                // the days past the retention are only left as rollups, the rows rolled up are
+                // counted from the rollups of their hours
+                cursor = dbAdapter.getServingRollups();
+                while (cursor.moveToNext()) {
+                    int samples = cursor.getInt(3);
+                    add(cursor.getDouble(0), cursor.getDouble(1), Math.round(cursor.getDouble(2) * samples), samples);
+                    added += samples;
+                }
+                cursor.close();
+                cursor = null;
+                for (SignalHistory.Partition partition : partitions) {
+                    mLastIds.put(partition.day, partition.rolledUpId);
+                }
+                mSeeded = true;
+            }
+            Map<Integer, Long> lastIds = new HashMap<>();
+            for (SignalHistory.Partition partition : partitions) {
+                Long lastId = mLastIds.get(partition.day);
+                long last = lastId == null ? 0 : lastId;
+                cursor = dbAdapter.getServingSignalsAfter(partition, last);
+                while (cursor.moveToNext()) {
+                    last = Math.max(last, cursor.getLong(0));
+                    int dbm = cursor.getInt(3);
+                    // 0 and the unknown values are not a signal
+                    if (dbm >= 0) continue;
+                    add(cursor.getDouble(1), cursor.getDouble(2), dbm, 1);
+                    added++;
+                }
+                cursor.close();
+                cursor = null;
+                lastIds.put(partition.day, last);
+            }
+            // the days dropped meanwhile are forgotten
+            mLastIds.clear();
+            mLastIds.putAll(lastIds);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "update >>" + e.toString());
+            if (!mSeeded) {
+                // read it all again on the next update
+                mTiles.clear();
+                mLastTile = null;
+                mBinCount = 0;
+                mLastIds.clear();
+                added = 0;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (added > 0) {
+            mSamples += added;
+            mVersion++;
+        }
+        return added;
+    }
+
+    private void add(double lat, double lon, long sum, int count) {
+        long x = (long) ((lon + 180) / GRID_CELL);
+        long y = (long) ((lat + 90) / GRID_CELL);
+        long tileX = x >> TILE_SHIFT;
+        long tileY = y >> TILE_SHIFT;
+        Tile tile = mLastTile;
+        if (tile == null || tile.x != tileX || tile.y != tileY) {
+            Long key = (tileX << 32) | tileY;
+            tile = mTiles.get(key);
+            if (tile == null) {
+                tile = new Tile(tileX, tileY);
+                mTiles.put(key, tile);
+            }
+            mLastTile = tile;
+        }
+        int i = (int) ((y & (TILE_CELLS - 1)) * TILE_CELLS + (x & (TILE_CELLS - 1)));
+        if (tile.count[i] == 0) {
+            mBinCount++;
+        }
+        tile.sum[i] += sum;
+        tile.count[i] += count;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * The raster of the bounds at the map zoom, aligned to the grid, so it may be a bit larger
+     * than the bounds.
+     */
+    public synchronized Raster render(double south, double north, double west, double east, float zoom) {
+        // grid cells per raster cell, a power of two
+        int shift = 0;
+        double screenCell = RASTER_CELL_PIXELS * 360.0 / ((double) TILE_PIXELS * Math.pow(2, zoom));
+        while (shift < GRID_LEVEL && (GRID_CELL * (1 << shift) < screenCell
+                || (east - west) / (GRID_CELL * (1 << shift)) >= MAX_RASTER_SIZE
+                || (north - south) / (GRID_CELL * (1 << shift)) >= MAX_RASTER_SIZE)) {
+            shift++;
+        }
+        double cell = GRID_CELL * (1 << shift);
+        long x0 = (long) ((west + 180) / cell);
+        long y0 = (long) ((south + 90) / cell);
+        int width = (int) ((long) ((east + 180) / cell) - x0 + 1);
+        int height = (int) ((long) ((north + 90) / cell) - y0 + 1);
+
+        double rasterSouth = y0 * cell - 90;
+        double rasterNorth = (y0 + height) * cell - 90;
+        double rasterWest = x0 * cell - 180;
+        double rasterEast = (x0 + width) * cell - 180;
+
+        // the tiles of the raster
+        long tileX0 = (x0 << shift) >> TILE_SHIFT;
+        long tileY0 = (y0 << shift) >> TILE_SHIFT;
+        long tileX1 = (((x0 + width) << shift) - 1) >> TILE_SHIFT;
+        long tileY1 = (((y0 + height) << shift) - 1) >> TILE_SHIFT;
+        long[] sum = null;
+        int[] count = null;
+        boolean found = false;
+        if ((tileX1 - tileX0 + 1) * (tileY1 - tileY0 + 1) <= mTiles.size()) {
+            // fewer tiles in the raster than recorded, look each one up
+            for (long tileX = tileX0; tileX <= tileX1; tileX++) {
+                for (long tileY = tileY0; tileY <= tileY1; tileY++) {
+                    Tile tile = mTiles.get((tileX << 32) | tileY);
+                    if (tile == null) continue;
+                    if (sum == null) {
+                        sum = new long[width * height];
+                        count = new int[width * height];
+                    }
+                    found |= addTile(tile, shift, x0, y0, width, height, sum, count);
+                }
+            }
+        } else {
+            for (Tile tile : mTiles.values()) {
+                if (tile.x < tileX0 || tile.x > tileX1 || tile.y < tileY0 || tile.y > tileY1) continue;
+                if (sum == null) {
+                    sum = new long[width * height];
+                    count = new int[width * height];
+                }
+                found |= addTile(tile, shift, x0, y0, width, height, sum, count);
+            }
+        }
+        if (!found) {
+            // nothing recorded here
+            return new Raster(rasterSouth, rasterNorth, rasterWest, rasterEast, width, height, null, mVersion);
+        }
+        int[] dbm = new int[width * height];
+        for (int i = 0; i < dbm.length; i++) {
+            if (count[i] > 0) {
+                dbm[i] = (int) Math.round((double) sum[i] / count[i]);
+            }
+        }
+        return new Raster(rasterSouth, rasterNorth, rasterWest, rasterEast, width, height, dbm, mVersion);
+    }
+
+    /**
+     * Add the grid cells of the tile into the raster cells of shift, row 0 of the raster is the north.
+     * @return whether a grid cell fell into the raster
+     */
+    private static boolean addTile(Tile tile, int shift, long x0, long y0, int width, int height, long[] sum, int[] count) {
+        boolean found = false;
+        for (int j = 0; j < TILE_CELLS * TILE_CELLS; j++) {
+            if (tile.count[j] == 0) continue;
+            long x = (((tile.x << TILE_SHIFT) + (j & (TILE_CELLS - 1))) >> shift) - x0;
+            long y = (((tile.y << TILE_SHIFT) + (j >> TILE_SHIFT)) >> shift) - y0;
+            if (x < 0 || x >= width || y < 0 || y >= height) continue;
+            int i = (int) ((height - 1 - y) * width + x);
+            sum[i] += tile.sum[j];
+            count[i] += tile.count[j];
+            found = true;
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mSamples + " samples in " + mBinCount + " cells of " + mTiles.size() + " tiles, version " + mVersion;
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The raw signal history, partitioned by local day.
+ *
+ * Every day has its own table CELLSIGNALHISTROY_yyyyMMdd with the columns of the old
+ * CELLSIGNALHISTROY and an index on time, listed in HISTORYPARTITIONS with its time range.
+ * Once a day is over its samples are rolled up into CELLSIGNALROLLUP, one row per cell and
+ * hour with the sample count, min/avg/max RSS and the bounding box of the positions. The
+ * catalog keeps the last _id rolled up, the samples written to a day after its rollup, even
+ * to a day dropped already, are merged into the rollups on the next maintain(). Days past
+ * the retention are then dropped as a whole table, no row is deleted one by one.
+ * The rollups are kept. Static helpers on the statements of a db, like the migrations of
+ * DataBaseHelper.
+ */
+public class SignalHistory {
+    public static final String TAG = "SignalHistory";
+    private static final long HOUR = 3600000;
+    // the columns of a partition without rows
+    private static final String NO_PARTITION = "(SELECT 0 AS _id, '' AS IMEI, 0 AS MCC, 0 AS MNC, 0 AS LAC, 0 AS CID,"
+            + " 0.0 AS RSS, 0 AS time, 0.0 AS gps_lat, 0.0 AS gps_lon, 0 AS net_type, 0 AS serving, 0 AS fix_id LIMIT 0)";
+
+    private static final String PARTITIONS_SQL = "SELECT day, start_time, end_time, rolled_up, rolled_up_id FROM "
+            + TowerConstant.historyPartitionTable + " WHERE end_time > ? AND start_time < ? ORDER BY day";
+
+    private static final String ADD_PARTITION_SQL = "INSERT OR IGNORE INTO " + TowerConstant.historyPartitionTable
+            + " (day, start_time, end_time) VALUES (?, ?, ?)";
+
+    // %s is the partition table
+    private static final String LAST_ID_SQL = "SELECT COALESCE(MAX(_id), 0) FROM %s";
+
+    /**
+     * One day of raw history, start <= time < end in epoch milliseconds.
+     */
+    public static class Partition {
+        public final int day;
+        public final String table;
+        public final long start;
+        public final long end;
+        public final boolean rolledUp;
+        // the rows up to this _id are in the rollups
+        public final long rolledUpId;
+
+        Partition(int day, long start, long end, boolean rolledUp, long rolledUpId) {
+            this.day = day;
+            this.table = tableOf(day);
+            this.start = start;
+            this.end = end;
+            this.rolledUp = rolledUp;
+            this.rolledUpId = rolledUpId;
+        }
+
+        public boolean contains(long time) {
+            return time >= start && time < end;
+        }
+    }
+
+    private SignalHistory() {
+    }
+
+    static void createCatalog(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TowerConstant.historyPartitionTable
+                + " (day INTEGER PRIMARY KEY, start_time INTEGER NOT NULL, end_time INTEGER NOT NULL, rolled_up INTEGER DEFAULT 0)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TowerConstant.signalRollupTable
+                + " (hour INTEGER NOT NULL, MCC INTEGER NOT NULL, MNC INTEGER NOT NULL, LAC INTEGER NOT NULL,"
+                + " CID INTEGER NOT NULL, serving INTEGER NOT NULL, net_type INTEGER, samples INTEGER NOT NULL,"
+                + " min_rss REAL, avg_rss REAL, max_rss REAL, min_lat REAL, max_lat REAL, min_lon REAL, max_lon REAL,"
+                + " sum_lat REAL, sum_lon REAL,"
+                + " PRIMARY KEY (hour, MCC, MNC, LAC, CID, serving))");
+    }
+
+    static String tableOf(int day) {
+        return TowerConstant.cellSignalHistoryTable + "_" + day;
+    }
+
+    /**
+     * The partition of the time, created with its catalog row if it does not exist yet.
+     */
+    static Partition partitionOf(StatementCache statements, long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        int day = calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+        long start = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        Partition partition = new Partition(day, start, calendar.getTimeInMillis(), false, 0);
+
+        SQLiteDatabase db = statements.getDatabase();
+        String table = partition.table;
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " (_id INTEGER PRIMARY KEY, IMEI TEXT NOT NULL,"
+                + " MCC INTEGER NOT NULL, MNC INTEGER NOT NULL, LAC INTEGER NOT NULL, CID INTEGER NOT NULL,"
+                + " RSS REAL NOT NULL, time INTEGER, gps_lat REAL NOT NULL, gps_lon REAL NOT NULL, net_type INTEGER,"
+                + " serving INTEGER DEFAULT 1, fix_id INTEGER)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + table.toLowerCase(Locale.US) + "_time ON " + table + " (time)");
+        SQLiteStatement stmt = statements.get(ADD_PARTITION_SQL);
+        synchronized (stmt) {
+            stmt.bindLong(1, day);
+            stmt.bindLong(2, partition.start);
+            stmt.bindLong(3, partition.end);
+            statements.executeInsert("addPartition", stmt);
+        }
+        return partition;
+    }
+
+    /**
+     * The partitions with a part of from <= time < to, oldest first.
+     */
+    static List<Partition> getPartitions(StatementCache statements, long from, long to) {
+        List<Partition> partitions = new ArrayList<>();
+        Cursor cursor = statements.rawQuery("historyPartitions", PARTITIONS_SQL,
+                new String[]{String.valueOf(from), String.valueOf(to)});
+        try {
+            while (cursor.moveToNext()) {
+                partitions.add(new Partition(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2), cursor.getInt(3) != 0,
+                        cursor.getLong(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return partitions;
+    }
+
+    static List<Partition> getPartitions(StatementCache statements) {
+        return getPartitions(statements, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * UNION ALL of the select over every partition, the table goes in place of %s.
+     * Without partitions the select runs on an empty row set of the same columns.
+     */
+    static String unionOf(List<Partition> partitions, String select) {
+        if (partitions.isEmpty()) {
+            return String.format(select, NO_PARTITION);
+        }
+        StringBuilder sql = new StringBuilder();
+        for (Partition partition : partitions) {
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append(String.format(select, partition.table));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Roll up the samples of the days before today that are not rolled up yet, then drop the
+     * rolled up days that ended more than retentionDays before today.
+     * @return the number of partitions dropped
+     */
+    static int maintain(StatementCache statements, Partition todayPartition, int retentionDays) {
+        SQLiteDatabase db = statements.getDatabase();
+        long today = todayPartition.start;
+        int dropped = 0;
+        for (Partition partition : getPartitions(statements, Long.MIN_VALUE, today)) {
+            long lastId = lastIdOf(statements, partition);
+            if (!partition.rolledUp || lastId > partition.rolledUpId) {
+                db.beginTransactionNonExclusive();
+                try {
+                    rollUp(db, partition, lastId);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (partition.end <= today - retentionDays * 24 * HOUR) {
+                // a compiled statement must not outlive its table
+                statements.release(String.format(LAST_ID_SQL, partition.table));
+                db.beginTransactionNonExclusive();
+                try {
+                    db.execSQL("DROP TABLE IF EXISTS " + partition.table);
+                    db.execSQL("DELETE FROM " + TowerConstant.historyPartitionTable + " WHERE day = " + partition.day);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            Log.i(TAG, "maintain: dropped " + dropped + " days of raw history");
+        }
+        return dropped;
+    }
+
+    private static long lastIdOf(StatementCache statements, Partition partition) {
+        SQLiteStatement stmt = statements.get(String.format(LAST_ID_SQL, partition.table));
+        synchronized (stmt) {
+            return statements.simpleQueryForLong("partitionLastId", stmt);
+        }
+    }
+
+    /**
+     * Merge the rows after the last one rolled up, up to lastId, into the rollups of their hours.
+     * No UPSERT before SQLite 3.24, the rollup rows are replaced by the old ones joined to the new.
+     */
+    private static void rollUp(SQLiteDatabase db, Partition partition, long lastId) {
+        // the hours count from the start of the day, an hour never spans two partitions
+        String hour = "(" + partition.start + " + (time - " + partition.start + ") / " + HOUR + " * " + HOUR + ")";
+        String rollup = TowerConstant.signalRollupTable;
+        db.execSQL("INSERT OR REPLACE INTO " + rollup
+                + " (hour, MCC, MNC, LAC, CID, serving, net_type, samples, min_rss, avg_rss, max_rss,"
+                + " min_lat, max_lat, min_lon, max_lon, sum_lat, sum_lon)"
+                + " SELECT n.hour, n.MCC, n.MNC, n.LAC, n.CID, n.serving, COALESCE(n.net_type, o.net_type),"
+                + " n.samples + COALESCE(o.samples, 0),"
+                + " MIN(n.min_rss, COALESCE(o.min_rss, n.min_rss)),"
+                + " (n.avg_rss * n.samples + COALESCE(o.avg_rss * o.samples, 0)) / (n.samples + COALESCE(o.samples, 0)),"
+                + " MAX(n.max_rss, COALESCE(o.max_rss, n.max_rss)),"
+                + " MIN(n.min_lat, COALESCE(o.min_lat, n.min_lat)), MAX(n.max_lat, COALESCE(o.max_lat, n.max_lat)),"
+                + " MIN(n.min_lon, COALESCE(o.min_lon, n.min_lon)), MAX(n.max_lon, COALESCE(o.max_lon, n.max_lon)),"
+                + " n.sum_lat + COALESCE(o.sum_lat, 0), n.sum_lon + COALESCE(o.sum_lon, 0)"
+                + " FROM (SELECT " + hour + " AS hour, MCC, MNC, LAC, CID, COALESCE(serving, 1) AS serving,"
+                + " MAX(net_type) AS net_type, COUNT(*) AS samples, MIN(RSS) AS min_rss, AVG(RSS) AS avg_rss,"
+                + " MAX(RSS) AS max_rss, MIN(gps_lat) AS min_lat, MAX(gps_lat) AS max_lat,"
+                + " MIN(gps_lon) AS min_lon, MAX(gps_lon) AS max_lon, TOTAL(gps_lat) AS sum_lat, TOTAL(gps_lon) AS sum_lon"
+                + " FROM " + partition.table + " WHERE time IS NOT NULL AND _id > " + partition.rolledUpId
+                + " AND _id <= " + lastId + " GROUP BY 1, 2, 3, 4, 5, 6) n"
+                + " LEFT JOIN " + rollup + " o ON o.hour = n.hour AND o.MCC = n.MCC AND o.MNC = n.MNC"
+                + " AND o.LAC = n.LAC AND o.CID = n.CID AND o.serving = n.serving");
+        db.execSQL("UPDATE " + TowerConstant.historyPartitionTable + " SET rolled_up = 1, rolled_up_id = " + lastId
+                + " WHERE day = " + partition.day);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.a.tower;
+
+/**
+ * The positions walked with the map open and the signal at each, oldest first.
+ *
+ * Held in primitive arrays used as a ring buffer. The arrays grow up to MAX_CAPACITY samples
+ * (a day of walking), after that the oldest samples are overwritten. Must be used on the main
+ * thread.
+ */
+public class SignalTrail {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 18;
+
+    private double[] mLat = new double[INITIAL_CAPACITY];
+    private double[] mLon = new double[INITIAL_CAPACITY];
+    private int[] mDbm = new int[INITIAL_CAPACITY];
+    private int[] mColor = new int[INITIAL_CAPACITY];
+    // index of the oldest sample
+    private int mStart;
+    private int mSize;
+    // samples ever added, the last one is sample getTotal() - 1
+    private long mTotal;
+
+    /**
+     * @param color the colour band the sample is drawn with
+     */
+    public void add(double lat, double lon, int dbm, int color) {
+        if (mSize == mLat.length && mLat.length < MAX_CAPACITY) {
+            grow();
+        }
+        int i;
+        if (mSize < mLat.length) {
+            i = (mStart + mSize) % mLat.length;
+            mSize++;
+        } else {
+            // full, overwrite the oldest
+            i = mStart;
+            mStart = (mStart + 1) % mLat.length;
+        }
+        mLat[i] = lat;
+        mLon[i] = lon;
+        mDbm[i] = dbm;
+        mColor[i] = color;
+        mTotal++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getTotal() {
+        return mTotal;
+    }
+
+    // i from 0, the oldest sample kept, to size() - 1, the last one
+    public double getLat(int i) {
+        return mLat[(mStart + i) % mLat.length];
+    }
+
+    public double getLon(int i) {
+        return mLon[(mStart + i) % mLon.length];
+    }
+
+    public int getDbm(int i) {
+        return mDbm[(mStart + i) % mDbm.length];
+    }
+
+    public int getColor(int i) {
+        return mColor[(mStart + i) % mColor.length];
+    }
+
+    // the last colour band, 0 if empty
+    public int getLastColor() {
+        return mSize == 0 ? 0 : getColor(mSize - 1);
+    }
+
+    private void grow() {
+        int capacity = Math.min(mLat.length * 2, MAX_CAPACITY);
+        mLat = unwrap(mLat, capacity);
+        mLon = unwrap(mLon, capacity);
+        mDbm = unwrap(mDbm, capacity);
+        mColor = unwrap(mColor, capacity);
+        mStart = 0;
+    }
+
+    private double[] unwrap(double[] values, int capacity) {
+        double[] grown = new double[capacity];
+        int head = values.length - mStart;
+        System.arraycopy(values, mStart, grown, 0, head);
+        System.arraycopy(values, 0, grown, head, mStart);
+        return grown;
+    }
+
+    private int[] unwrap(int[] values, int capacity) {
+        int[] grown = new int[capacity];
+        int head = values.length - mStart;
+        System.arraycopy(values, mStart, grown, 0, head);
+        System.arraycopy(values, 0, grown, head, mStart);
+        return grown;
+    }
+}
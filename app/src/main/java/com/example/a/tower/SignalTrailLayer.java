@@ -0,0 +1,157 @@
+package com.example.a.tower;
+
+import com.baidu.mapapi.map.BaiduMap;
+import com.baidu.mapapi.map.Polyline;
+import com.baidu.mapapi.map.PolylineOptions;
+import com.baidu.mapapi.model.LatLng;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Draws the part of a SignalTrail inside the viewport as polylines.
+ *
+ * Consecutive samples of the same colour band make one polyline, the next band starts a new one
+ * at the last point of the previous, so the line is unbroken. A polyline is only made for the
+ * segments with an end inside the bounds. show() rebuilds the polylines for new bounds, append()
+ * extends the last polyline, or adds one, for the last sample of the trail. At most
+ * MAX_SEGMENTS polylines are kept, the oldest go first. Must be used on the main thread.
+ */
+public class SignalTrailLayer {
+    public static final String TAG = "SignalTrailLayer";
+    private static final int MAX_SEGMENTS = 200;
+    private static final int LINE_WIDTH = 8;
+    private static final int Z_INDEX = 3;
+
+    private static class Segment {
+        final Polyline polyline;
+        final List<LatLng> points;
+        final int color;
+
+        Segment(Polyline polyline, List<LatLng> points, int color) {
+            this.polyline = polyline;
+            this.points = points;
+            this.color = color;
+        }
+    }
+
+    private final BaiduMap mMap;
+    private final SignalTrail mTrail;
+    private final Deque<Segment> mSegments = new ArrayDeque<>();
+    private double mSouth;
+    private double mNorth;
+    private double mWest;
+    private double mEast;
+    private boolean mShown;
+    // the samples of the trail drawn so far
+    private long mDrawnTotal;
+    // the last segment ends at the last sample drawn, it can be extended
+    private boolean mLastOpen;
+
+    public SignalTrailLayer(BaiduMap map, SignalTrail trail) {
+        mMap = map;
+        mTrail = trail;
+    }
+
+    /**
+     * Draw the trail within the bounds, map coordinates.
+     */
+    public void show(double south, double north, double west, double east) {
+        mSouth = south;
+        mNorth = north;
+        mWest = west;
+        mEast = east;
+        mShown = true;
+        clear();
+        List<LatLng> points = null;
+        int color = 0;
+        for (int i = 1; i < mTrail.size(); i++) {
+            if (!isVisible(i - 1) && !isVisible(i)) {
+                addSegment(points, color);
+                points = null;
+                continue;
+            }
+            // the segment to a sample has the colour of the sample
+            int sampleColor = mTrail.getColor(i);
+            if (points == null || sampleColor != color) {
+                addSegment(points, color);
+                points = new ArrayList<>();
+                points.add(position(i - 1));
+                color = sampleColor;
+            }
+            points.add(position(i));
+        }
+        mLastOpen = points != null;
+        addSegment(points, color);
+        mDrawnTotal = mTrail.getTotal();
+    }
+
+    /**
+     * Draw the samples added to the trail since the last call.
+     */
+    public void append() {
+        if (!mShown) return;
+        if (mTrail.getTotal() != mDrawnTotal + 1) {
+            // more than one new sample, or the trail was trimmed under us
+            show(mSouth, mNorth, mWest, mEast);
+            return;
+        }
+        mDrawnTotal = mTrail.getTotal();
+        int last = mTrail.size() - 1;
+        if (last < 1 || (!isVisible(last - 1) && !isVisible(last))) {
+            mLastOpen = false;
+            return;
+        }
+        int color = mTrail.getColor(last);
+        Segment segment = mSegments.peekLast();
+        if (mLastOpen && segment != null && segment.color == color) {
+            segment.points.add(position(last));
+            segment.polyline.setPoints(segment.points);
+        } else {
+            List<LatLng> points = new ArrayList<>();
+            points.add(position(last - 1));
+            points.add(position(last));
+            addSegment(points, color);
+        }
+        mLastOpen = true;
+    }
+
+    public void clear() {
+        for (Segment segment : mSegments) {
+            segment.polyline.remove();
+        }
+        mSegments.clear();
+        mLastOpen = false;
+    }
+
+    public int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    private void addSegment(List<LatLng> points, int color) {
+        if (points == null || points.size() < 2) return;
+        Polyline polyline = (Polyline) mMap.addOverlay(new PolylineOptions().points(points).color(color)
+                .width(LINE_WIDTH).zIndex(Z_INDEX));
+        mSegments.addLast(new Segment(polyline, points, color));
+        if (mSegments.size() > MAX_SEGMENTS) {
+            mSegments.removeFirst().polyline.remove();
+        }
+    }
+
+    private boolean isVisible(int i) {
+        double lat = mTrail.getLat(i);
+        double lon = mTrail.getLon(i);
+        return lat >= mSouth && lat <= mNorth && lon >= mWest && lon <= mEast;
+    }
+
+    private LatLng position(int i) {
+        return new LatLng(mTrail.getLat(i), mTrail.getLon(i));
+    }
+
+    @Override
+    public String toString() {
+        return mTrail.size() + " samples, " + mSegments.size() + " segments";
+    }
+}
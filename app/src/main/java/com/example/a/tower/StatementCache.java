@@ -0,0 +1,184 @@
+package com.example.a.tower;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled statements of DataBaseAdapter, with the execution count and latency of each.
+ *
+ * Statements that write or return a single value are compiled once into a SQLiteStatement and
+ * kept here by their SQL. Queries that return a cursor use constant SQL with bound arguments,
+ * SQLite finds them already prepared in the statement cache of its connection, only their
+ * timing is kept here. The timings are kept by a short name given by the caller, a query is
+ * timed up to its first cursor window. A SQLiteStatement keeps its bindings, so it is bound
+ * and run by one thread at a time.
+ */
+public class StatementCache {
+    public static final String TAG = "StatementCache";
+
+    public static class Stats {
+        public final String name;
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getTotalMicros() {
+            return mTotalNanos / 1000;
+        }
+
+        public synchronized long getAverageMicros() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount / 1000;
+        }
+
+        public synchronized long getMaxMicros() {
+            return mMaxNanos / 1000;
+        }
+
+        synchronized void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + " " + mCount + "x, avg " + getAverageMicros() + " us, max " + getMaxMicros() + " us";
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+    private final Map<String, Stats> mStats = new HashMap<>();
+
+    public StatementCache(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    public SQLiteDatabase getDatabase() {
+        return mDb;
+    }
+
+    /**
+     * The statement of the SQL, compiled on first use.
+     */
+    public synchronized SQLiteStatement get(String sql) {
+        SQLiteStatement stmt = mStatements.get(sql);
+        if (stmt == null) {
+            stmt = mDb.compileStatement(sql);
+            mStatements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    // close the statement of the SQL, e.g. when its table is about to be dropped
+    public synchronized void release(String sql) {
+        SQLiteStatement stmt = mStatements.remove(sql);
+        if (stmt != null) {
+            stmt.close();
+        }
+    }
+
+    public long executeInsert(String name, SQLiteStatement stmt) {
+        long start = System.nanoTime();
+        long rowId = stmt.executeInsert();
+        statsOf(name).add(System.nanoTime() - start);
+        return rowId;
+    }
+
+    public int executeUpdateDelete(String name, SQLiteStatement stmt) {
+        long start = System.nanoTime();
+        int rows = stmt.executeUpdateDelete();
+        statsOf(name).add(System.nanoTime() - start);
+        return rows;
+    }
+
+    public long simpleQueryForLong(String name, SQLiteStatement stmt) {
+        long start = System.nanoTime();
+        long value = stmt.simpleQueryForLong();
+        statsOf(name).add(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * rawQuery with its first window filled, so the time spent in SQLite is counted.
+     */
+    public Cursor rawQuery(String name, String sql, String[] args, CancellationSignal cancellationSignal) {
+        long start = System.nanoTime();
+        Cursor cursor = mDb.rawQuery(sql, args, cancellationSignal);
+        try {
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        statsOf(name).add(System.nanoTime() - start);
+        return cursor;
+    }
+
+    public Cursor rawQuery(String name, String sql, String[] args) {
+        return rawQuery(name, sql, args, null);
+    }
+
+    /**
+     * The statistics of every statement run so far, the most total time first.
+     */
+    public synchronized List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>(mStats.values());
+        Collections.sort(stats, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats a, Stats b) {
+                long ta = a.getTotalMicros();
+                long tb = b.getTotalMicros();
+                return ta < tb ? 1 : (ta > tb ? -1 : 0);
+            }
+        });
+        return stats;
+    }
+
+    public synchronized void close() {
+        for (SQLiteStatement stmt : mStatements.values()) {
+            stmt.close();
+        }
+        mStatements.clear();
+    }
+
+    private synchronized Stats statsOf(String name) {
+        Stats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new Stats(name);
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Stats stats : getStats()) {
+            if (text.length() > 0) {
+                text.append("; ");
+            }
+            text.append(stats);
+        }
+        return mStatements.size() + " compiled; " + text;
+    }
+}
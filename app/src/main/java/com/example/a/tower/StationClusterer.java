@@ -0,0 +1,161 @@
+package com.example.a.tower;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Grid clustering of station positions for every map zoom level.
+ *
+ * The positions are projected to web mercator and bucketed in a grid of CLUSTER_PIXELS screen
+ * pixels. The grid of one zoom level is exactly the grid of the next level with its cell
+ * coordinates halved, so the finest level is bucketed from the positions and every coarser
+ * level is merged from the level below it. All levels are built by the constructor, which is
+ * meant to run on a background thread; picking the clusters of a zoom level is then free.
+ */
+public class StationClusterer {
+    public static final int MIN_ZOOM = 3;
+    public static final int MAX_ZOOM = 21;
+    // size of a grid cell on the screen
+    private static final int CLUSTER_PIXELS = 64;
+    private static final int TILE_PIXELS = 256;
+
+    public static class Cluster {
+        // the mean position of the members
+        public final double lat;
+        public final double lon;
+        public final int count;
+        // index of the first member in the clustered list, the station itself if count is 1
+        public final int item;
+        public final int zoom;
+        // unique among the clusters of all levels, negative, the grid cell and the zoom
+        public final long key;
+
+        Cluster(double lat, double lon, int count, int item, int zoom, long x, long y) {
+            this.lat = lat;
+            this.lon = lon;
+            this.count = count;
+            this.item = item;
+            this.zoom = zoom;
+            this.key = Long.MIN_VALUE | ((long) zoom << 56) | (x << 28) | y;
+        }
+
+        public boolean isSingle() {
+            return count == 1;
+        }
+    }
+
+    private final List<List<Cluster>> mLevels = new ArrayList<>(MAX_ZOOM - MIN_ZOOM + 1);
+    private final int mItemCount;
+
+    public StationClusterer(double[] lat, double[] lon, int count) {
+        mItemCount = count;
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            mLevels.add(null);
+        }
+
+        // finest level from the positions
+        Map<Long, Bucket> buckets = new HashMap<>();
+        // grid cells across the world at MAX_ZOOM
+        double scale = (double) TILE_PIXELS * (1L << MAX_ZOOM) / CLUSTER_PIXELS;
+        for (int i = 0; i < count; i++) {
+            long x = (long) (mercatorX(lon[i]) * scale);
+            long y = (long) (mercatorY(lat[i]) * scale);
+            long key = (x << 32) | y;
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(x, y, i);
+                buckets.put(key, bucket);
+            }
+            bucket.add(lat[i], lon[i], 1);
+        }
+        setLevel(MAX_ZOOM, buckets);
+
+        // every coarser level from the one below
+        for (int zoom = MAX_ZOOM - 1; zoom >= MIN_ZOOM; zoom--) {
+            Map<Long, Bucket> parents = new HashMap<>();
+            for (Bucket child : buckets.values()) {
+                long x = child.x >> 1;
+                long y = child.y >> 1;
+                long key = (x << 32) | y;
+                Bucket parent = parents.get(key);
+                if (parent == null) {
+                    parent = new Bucket(x, y, child.item);
+                    parents.put(key, parent);
+                } else if (child.item < parent.item) {
+                    parent.item = child.item;
+                }
+                parent.add(child.sumLat, child.sumLon, child.count);
+            }
+            buckets = parents;
+            setLevel(zoom, buckets);
+        }
+    }
+
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    public List<Cluster> getClusters(int zoom) {
+        return mLevels.get(clampZoom(zoom) - MIN_ZOOM);
+    }
+
+    /**
+     * The clusters of the map zoom, or of a coarser level if that one has more than
+     * maxClusters clusters, so that the overlay count stays bounded.
+     */
+    public List<Cluster> getBoundedClusters(float zoom, int maxClusters) {
+        int level = clampZoom((int) zoom);
+        List<Cluster> clusters = getClusters(level);
+        while (clusters.size() > maxClusters && level > MIN_ZOOM) {
+            clusters = getClusters(--level);
+        }
+        return clusters;
+    }
+
+    private void setLevel(int zoom, Map<Long, Bucket> buckets) {
+        List<Cluster> clusters = new ArrayList<>(buckets.size());
+        for (Bucket bucket : buckets.values()) {
+            clusters.add(new Cluster(bucket.sumLat / bucket.count, bucket.sumLon / bucket.count,
+                    bucket.count, bucket.item, zoom, bucket.x, bucket.y));
+        }
+        mLevels.set(zoom - MIN_ZOOM, clusters);
+    }
+
+    private static int clampZoom(int zoom) {
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+    }
+
+    // 0..1 from west to east
+    private static double mercatorX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    // 0..1 from north to south
+    private static double mercatorY(double lat) {
+        double sin = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, lat))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static class Bucket {
+        final long x;
+        final long y;
+        int item;
+        int count;
+        double sumLat;
+        double sumLon;
+
+        Bucket(long x, long y, int item) {
+            this.x = x;
+            this.y = y;
+            this.item = item;
+        }
+
+        void add(double lat, double lon, int count) {
+            this.sumLat += lat;
+            this.sumLon += lon;
+            this.count += count;
+        }
+    }
+}
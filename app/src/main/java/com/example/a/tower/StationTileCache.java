@@ -0,0 +1,235 @@
+package com.example.a.tower;
+
+import android.os.CancellationSignal;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Viewport cache of the stations of one table, by fixed lat/lon tiles.
+ *
+ * The tiles of a zoom band are TILE_PIXELS screen pixels wide at that zoom, so a viewport
+ * covers a few tiles whatever the zoom. A viewport query only reads the tiles not cached yet
+ * from the db, in one query over their bounds, and then filters the cached tiles to the
+ * viewport. The tiles are evicted least recently used first, weighed by the number of stations
+ * they hold. invalidate() drops the tiles of an area, or of single positions, of all bands once
+ * the table has changed.
+ * Thread safe, queries are meant to run on a background thread.
+ */
+public class StationTileCache<T> {
+    public static final String TAG = "StationTileCache";
+    private static final int MIN_BAND = StationClusterer.MIN_ZOOM;
+    private static final int MAX_BAND = StationClusterer.MAX_ZOOM;
+    private static final int TILE_PIXELS = 512;
+    // weight of an empty tile, a tile costs its stations plus this
+    private static final int TILE_WEIGHT = 1;
+    // viewports of more tiles than this are read directly and not cached
+    private static final int MAX_QUERY_TILES = 64;
+
+    public interface Source<T> {
+        /**
+         * The stations with south <= lat < north and west <= lon < east, so that every
+         * station falls into exactly one tile. May throw OperationCanceledException.
+         */
+        List<T> query(double south, double north, double west, double east, CancellationSignal signal);
+
+        double getLat(T item);
+
+        double getLon(T item);
+    }
+
+    private final Source<T> mSource;
+    private final LruCache<Long, List<T>> mTiles;
+    // grows with every invalidate(), a query started before does not cache its tiles
+    private int mGeneration;
+
+    // counters
+    private volatile long mTileHits;
+    private volatile long mTileMisses;
+    private volatile long mQueries;
+    private volatile long mInvalidations;
+
+    /**
+     * @param maxStations the total weight of the cached tiles, about the number of stations kept
+     */
+    public StationTileCache(Source<T> source, int maxStations) {
+        mSource = source;
+        mTiles = new LruCache<Long, List<T>>(maxStations) {
+            @Override
+            protected int sizeOf(Long key, List<T> tile) {
+                return tile.size() + TILE_WEIGHT;
+            }
+        };
+    }
+
+    /**
+     * The stations strictly inside the bounds, same as DataBaseAdapter.getStationsByGpsScope.
+     * @param zoom the map zoom, picks the tile size
+     */
+    public List<T> get(double south, double north, double west, double east, float zoom,
+                       CancellationSignal signal) {
+        int band = Math.max(MIN_BAND, Math.min(MAX_BAND, (int) zoom));
+        double span = tileSpan(band);
+        long x0 = tileX(west, span);
+        long x1 = tileX(east, span);
+        long y0 = tileY(south, span);
+        long y1 = tileY(north, span);
+        if (x1 < x0 || y1 < y0 || (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_QUERY_TILES) {
+            mQueries++;
+            return filter(mSource.query(south, north, west, east, signal), south, north, west, east, null);
+        }
+
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        // the tiles of the viewport, the missing ones read in one query over their bounds
+        int columns = (int) (x1 - x0 + 1);
+        List<List<T>> tiles = new ArrayList<>(Collections.<List<T>>nCopies(columns * (int) (y1 - y0 + 1), null));
+        long missX0 = Long.MAX_VALUE, missX1 = Long.MIN_VALUE, missY0 = Long.MAX_VALUE, missY1 = Long.MIN_VALUE;
+        for (long y = y0; y <= y1; y++) {
+            for (long x = x0; x <= x1; x++) {
+                List<T> tile = mTiles.get(key(band, x, y));
+                if (tile == null) {
+                    missX0 = Math.min(missX0, x);
+                    missX1 = Math.max(missX1, x);
+                    missY0 = Math.min(missY0, y);
+                    missY1 = Math.max(missY1, y);
+                    mTileMisses++;
+                } else {
+                    tiles.set((int) ((y - y0) * columns + (x - x0)), tile);
+                    mTileHits++;
+                }
+            }
+        }
+        if (missX0 <= missX1) {
+            mQueries++;
+            List<T> items = mSource.query(missY0 * span - 90, (missY1 + 1) * span - 90,
+                    missX0 * span - 180, (missX1 + 1) * span - 180, signal);
+            List<List<T>> read = new ArrayList<>(tiles.size());
+            for (int i = 0; i < tiles.size(); i++) {
+                read.add(tiles.get(i) == null ? new ArrayList<T>() : null);
+            }
+            for (int i = 0; i < items.size(); i++) {
+                T item = items.get(i);
+                long x = tileX(mSource.getLon(item), span);
+                long y = tileY(mSource.getLat(item), span);
+                // the query bounds may hold cached tiles too, those are kept as they are
+                if (x < x0 || x > x1 || y < y0 || y > y1) continue;
+                List<T> tile = read.get((int) ((y - y0) * columns + (x - x0)));
+                if (tile != null) {
+                    tile.add(item);
+                }
+            }
+            synchronized (this) {
+                for (int i = 0; i < read.size(); i++) {
+                    List<T> tile = read.get(i);
+                    if (tile == null) continue;
+                    tiles.set(i, tile);
+                    // an invalidate() since the query started may have dropped these tiles
+                    if (generation == mGeneration) {
+                        mTiles.put(key(band, x0 + i % columns, y0 + i / columns), tile);
+                    }
+                }
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++) {
+            filter(tiles.get(i), south, north, west, east, result);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the cached tiles of all bands that overlap the bounds.
+     */
+    public synchronized void invalidate(double south, double north, double west, double east) {
+        mGeneration++;
+        mInvalidations++;
+        for (Long key : mTiles.snapshot().keySet()) {
+            int band = (int) (key >>> 58);
+            double span = tileSpan(band);
+            long x = (key >>> 29) & 0x1fffffff;
+            long y = key & 0x1fffffff;
+            if (x >= tileX(west, span) && x <= tileX(east, span) && y >= tileY(south, span) && y <= tileY(north, span)) {
+                mTiles.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached tiles of all bands that hold one of the positions, e.g. where a station
+     * was and where it moved to.
+     */
+    public synchronized void invalidate(TowerPositions positions) {
+        if (positions.isEmpty()) {
+            return;
+        }
+        mGeneration++;
+        mInvalidations++;
+        for (int band = MIN_BAND; band <= MAX_BAND; band++) {
+            double span = tileSpan(band);
+            for (int i = 0; i < positions.size(); i++) {
+                mTiles.remove(key(band, tileX(positions.getLon(i), span), tileY(positions.getLat(i), span)));
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mTiles.evictAll();
+    }
+
+    public long getTileHits() {
+        return mTileHits;
+    }
+
+    public long getTileMisses() {
+        return mTileMisses;
+    }
+
+    public long getQueries() {
+        return mQueries;
+    }
+
+    @Override
+    public String toString() {
+        return mTiles.size() + "/" + mTiles.maxSize() + " cached, tiles hit " + mTileHits + " missed " + mTileMisses
+                + ", queries " + mQueries + ", evictions " + mTiles.evictionCount() + ", invalidations " + mInvalidations;
+    }
+
+    private List<T> filter(List<T> items, double south, double north, double west, double east, List<T> out) {
+        if (out == null) {
+            out = new ArrayList<>(items.size());
+        }
+        for (int i = 0; i < items.size(); i++) {
+            T item = items.get(i);
+            double lat = mSource.getLat(item);
+            double lon = mSource.getLon(item);
+            if (lat > south && lat < north && lon > west && lon < east) {
+                out.add(item);
+            }
+        }
+        return out;
+    }
+
+    // degrees of a tile of the band, TILE_PIXELS at the zoom of the band
+    private static double tileSpan(int band) {
+        return 360.0 * TILE_PIXELS / (256L << band);
+    }
+
+    private static long tileX(double lon, double span) {
+        return (long) Math.floor((lon + 180) / span);
+    }
+
+    private static long tileY(double lat, double span) {
+        return (long) Math.floor((lat + 90) / span);
+    }
+
+    private static long key(int band, long x, long y) {
+        return ((long) band << 58) | (x << 29) | y;
+    }
+}
@@ -5,6 +5,7 @@ package com.example.a.tower;
  */
 
 
+import android.database.Cursor;
 import android.telephony.TelephonyManager;
 
 import lombok.Getter;
@@ -60,6 +61,13 @@ public class Tower {
     @Setter
     private double lat;
 
+    /**
+     * Position on the Baidu map (BD-09), converted from lat/lon when read from the db
+     */
+    private double mapLat;
+
+    private double mapLon;
+
     {
         mcc = Integer.MAX_VALUE;
         mnc = Integer.MAX_VALUE;
@@ -73,6 +81,48 @@ public class Tower {
     public Tower() {
     }
 
+    // the columns of DETECTEDTOWERS read for the map
+    public static final String[] MAP_COLUMNS = {"MNC", "LAC", "TOWER", "gps_lat", "gps_lon", "net_type"};
+
+    /**
+     * Reads the rows of a cursor over DETECTEDTOWERS with at least MAP_COLUMNS, the column
+     * indices are looked up once per cursor.
+     */
+    public static class Reader {
+        private final Cursor mCursor;
+        private final int mMnc;
+        private final int mLac;
+        private final int mTid;
+        private final int mLat;
+        private final int mLon;
+        private final int mNetType;
+        private final double[] mMap = new double[2];
+
+        public Reader(Cursor cursor) {
+            mCursor = cursor;
+            mMnc = cursor.getColumnIndexOrThrow("MNC");
+            mLac = cursor.getColumnIndexOrThrow("LAC");
+            mTid = cursor.getColumnIndexOrThrow("TOWER");
+            mLat = cursor.getColumnIndexOrThrow("gps_lat");
+            mLon = cursor.getColumnIndexOrThrow("gps_lon");
+            mNetType = cursor.getColumnIndexOrThrow("net_type");
+        }
+
+        // the current row into the tower
+        public Tower read(Tower tower) {
+            tower.mnc = mCursor.getInt(mMnc);
+            tower.lac = mCursor.getInt(mLac);
+            tower.tid = mCursor.getInt(mTid);
+            tower.lat = mCursor.getDouble(mLat);
+            tower.lon = mCursor.getDouble(mLon);
+            tower.netType = mCursor.getInt(mNetType);
+            CoordinateTransform.wgs84ToBd09(tower.lat, tower.lon, mMap);
+            tower.mapLat = mMap[0];
+            tower.mapLon = mMap[1];
+            return tower;
+        }
+    }
+
 
     // get readable string from mnc
     public String getReadMNC() {
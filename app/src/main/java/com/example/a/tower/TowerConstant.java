@@ -8,4 +8,7 @@ public class TowerConstant {
     public static final String cellSignalHistoryTable = "CELLSIGNALHISTROY";
     public static final String detectedCellTable = "DETECTEDCELLS";
     public static final String detectedTowerTable = "DETECTEDTOWERS";
+    public static final String schemaHistoryTable = "SCHEMAHISTORY";
+    public static final String historyPartitionTable = "HISTORYPARTITIONS";
+    public static final String signalRollupTable = "CELLSIGNALROLLUP";
 }
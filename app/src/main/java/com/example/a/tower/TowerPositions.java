@@ -0,0 +1,49 @@
+package com.example.a.tower;
+
+/**
+ * The positions of the detected towers written by DataBaseAdapter.recordFixes(), where an
+ * updated tower was before and where it is now, where an inserted tower is. The viewport
+ * caches drop exactly the tiles of these positions.
+ *
+ * Reused from batch to batch, the positions are kept in two growing arrays of primitives.
+ * Not thread safe, filled and read by the ObservationWriter thread.
+ */
+public class TowerPositions {
+    private double[] mLat = new double[64];
+    private double[] mLon = new double[64];
+    private int mCount;
+
+    void add(double lat, double lon) {
+        if (mCount == mLat.length) {
+            double[] lat2 = new double[mCount * 2];
+            double[] lon2 = new double[mCount * 2];
+            System.arraycopy(mLat, 0, lat2, 0, mCount);
+            System.arraycopy(mLon, 0, lon2, 0, mCount);
+            mLat = lat2;
+            mLon = lon2;
+        }
+        mLat[mCount] = lat;
+        mLon[mCount] = lon;
+        mCount++;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public double getLat(int i) {
+        return mLat[i];
+    }
+
+    public double getLon(int i) {
+        return mLon[i];
+    }
+}
@@ -1,16 +1,22 @@
 package com.example.a.tower;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.CellInfo;
 import android.telephony.CellLocation;
@@ -23,8 +29,6 @@ import android.telephony.gsm.GsmCellLocation;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.baidu.mapapi.model.LatLng;
-
 import java.util.List;
 
 /**
@@ -32,18 +36,44 @@ import java.util.List;
  */
 public class TowerService extends Service  implements LocationListener{
     public static final String TAG = "TowerService";
-    private static final long GPS_MIN_UPDATE_TIME = 10000;
-    private static final float GPS_MIN_UPDATE_DISTANCE = 10;
     private final Handler timerHandler = new Handler();
+    // the telephony and location callbacks and the radio sampling run on this thread, every
+    // snapshot asks the TelephonyManager over binder and must stay off the main thread
+    private HandlerThread mSamplingThread;
+    private Handler mSamplingHandler;
+    private static final long SAMPLING_STOP_TIMEOUT = 2000;
+    // the index load stops at its next row once interrupted
+    private static final long INDEX_STOP_TIMEOUT = 2000;
     private final TowerBinder mBinder = new TowerBinder();
+    // about the number of detected towers kept by the tile cache
+    private static final int TOWER_CACHE_SIZE = 20000;
+    // a radio sample is dropped once the last fix is older than this many GPS intervals
+    private static final int STALE_FIX_INTERVALS = 2;
+    // days of raw signal history kept, older days only remain as hourly rollups
+    private static final int HISTORY_RETENTION_DAYS = 30;
     private CellTracker mCellTracker;
     private LocationManager locationManager;
     private static TelephonyManager tm;
+    // created on the sampling thread, its callbacks run on the looper it was created on
+    private PhoneStateListener phoneStatelistener;
     private Location mCurrentLocation;
     private Cell mCurrentCell;
     private Device mDevice;
     private DataBaseAdapter mDbAdaper;
-    public RecordAsyncTask recordAsyncTask;
+    private ObservationWriter mObservationWriter;
+    private RadioEventSampler mRadioEventSampler;
+    private SamplingScheduler mSamplingScheduler;
+    // written on the sampling thread, read by the map in O(1)
+    private volatile ServingCellState mServingCellState = ServingCellState.EMPTY;
+    // null until loaded in the background
+    private volatile RegisteredStationIndex mRegisteredStationIndex;
+    private Thread mIndexThread;
+    // the detected towers of the map by tile, invalidated where observations are written
+    private StationTileCache<Tower> mDetectedTowerCache;
+    // the RSS of the recorded history on a grid, kept up to date by the writer thread
+    private final SignalHeatmap mSignalHeatmap = new SignalHeatmap();
+    // set when the serving tower changed, the map is refreshed once the observation is written
+    private volatile boolean mMapUpdatePending;
 
     @Override
     public void onCreate() {
@@ -51,22 +81,101 @@ public class TowerService extends Service  implements LocationListener{
         Log.d(TAG, "onCreate() executed");
         mCellTracker = new CellTracker(this);
 
-        //the timer is not used now, maybe useful in the future
-        // startTraceTimer();
         mDbAdaper = new DataBaseAdapter(getApplicationContext());
         mDbAdaper.createDatabase();
         mDbAdaper.open();
+        // interrupted and joined by onDestroy() before the db is closed
+        mIndexThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mRegisteredStationIndex = RegisteredStationIndex.load(mDbAdaper);
+            }
+        }, RegisteredStationIndex.TAG);
+        mIndexThread.start();
+        mDetectedTowerCache = new StationTileCache<>(new StationTileCache.Source<Tower>() {
+            @Override
+            public List<Tower> query(double south, double north, double west, double east, CancellationSignal signal) {
+                return mDbAdaper.getDetectedTowersInTile(south, north, west, east, signal);
+            }
 
-        listenLocationChanges();
+            @Override
+            public double getLat(Tower tower) {
+                return tower.getLat();
+            }
 
+            @Override
+            public double getLon(Tower tower) {
+                return tower.getLon();
+            }
+        }, TOWER_CACHE_SIZE);
+        mObservationWriter = new ObservationWriter(mDbAdaper, new ObservationWriter.Listener() {
+            @Override
+            public void onStarted() {
+                // on the writer thread, so it is done before shutdown() returns and never
+                // alongside the maintenance and heatmap updates of onFlushed()
+                mDbAdaper.maintainHistory(HISTORY_RETENTION_DAYS);
+                // the whole history, later updates only read the new rows
+                mSignalHeatmap.update(mDbAdaper);
+            }
+
+            @Override
+            public void onFlushed(int count, TowerPositions towers) {
+                // the towers of the batch may have moved or been added, their tiles before and after
+                mDetectedTowerCache.invalidate(towers);
+                mSignalHeatmap.update(mDbAdaper);
+                // rolls up and drops the old days once the day is over
+                mDbAdaper.maintainHistory(HISTORY_RETENTION_DAYS);
+                if (mMapUpdatePending) {
+                    mMapUpdatePending = false;
+                    sendUpdateMapBroadcast();
+                }
+            }
+        });
+        mObservationWriter.start();
+        mSamplingThread = new HandlerThread(RadioEventSampler.TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mSamplingThread.start();
+        mSamplingHandler = new Handler(mSamplingThread.getLooper());
+        mRadioEventSampler = new RadioEventSampler(mCellTracker, mSamplingHandler, new RadioEventSampler.Listener() {
+            @Override
+            public void onSnapshot(CellSnapshot snapshot, long time) {
+                // the radio changed between two GPS fixes, record it at the last known position
+                // if that is recent, a phone standing still or indoors has no position for it
+                mSamplingScheduler.onRadioSample();
+                publishServingCell(snapshot);
+                if (mCurrentLocation == null || isStale(mCurrentLocation)) return;
+                showSwitchToast(recordCells(snapshot, time, mCurrentLocation, true));
+            }
+        });
+        mSamplingScheduler = new SamplingScheduler(new SamplingScheduler.Listener() {
+            @Override
+            public void onProfileChanged(int profile, long gpsInterval, float gpsDistance, long radioWindow) {
+                mRadioEventSampler.setWindow(radioWindow);
+                locationManager.removeUpdates(TowerService.this);
+                listenLocationChanges();
+            }
+        });
+        mRadioEventSampler.setWindow(mSamplingScheduler.getRadioWindow());
+        // sticky, the current battery state is delivered at once, on the sampling thread
+        registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, mSamplingHandler);
+
+        locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         tm = (TelephonyManager)getSystemService(Context.TELEPHONY_SERVICE);
-        tm.listen(phoneStatelistener,
-                PhoneStateListener.LISTEN_CELL_LOCATION |         // gpsd_lat/lon ?
-                        PhoneStateListener.LISTEN_SIGNAL_STRENGTHS |      // rx_signal
-                        PhoneStateListener.LISTEN_DATA_ACTIVITY |         // No,In,Ou,IO,Do
-                        PhoneStateListener.LISTEN_DATA_CONNECTION_STATE | // Di,Ct,Cd,Su
-                        PhoneStateListener.LISTEN_CELL_INFO               // !? (Need API 17)
-        );
+        mSamplingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listenLocationChanges();
+
+                phoneStatelistener = new SamplingPhoneStateListener();
+                tm.listen(phoneStatelistener,
+                        PhoneStateListener.LISTEN_CELL_LOCATION |         // gpsd_lat/lon ?
+                                PhoneStateListener.LISTEN_SIGNAL_STRENGTHS |      // rx_signal
+                                PhoneStateListener.LISTEN_DATA_ACTIVITY |         // No,In,Ou,IO,Do
+                                PhoneStateListener.LISTEN_DATA_CONNECTION_STATE | // Di,Ct,Cd,Su
+                                PhoneStateListener.LISTEN_SERVICE_STATE |         // in/out of service
+                                PhoneStateListener.LISTEN_CELL_INFO               // !? (Need API 17)
+                );
+            }
+        });
     }
 
     @Override
@@ -78,10 +187,35 @@ public class TowerService extends Service  implements LocationListener{
     @Override
     public void onDestroy() {
         super.onDestroy();
+        unregisterReceiver(mBatteryReceiver);
+        mSamplingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (phoneStatelistener != null) {
+                    tm.listen(phoneStatelistener, PhoneStateListener.LISTEN_NONE);
+                }
+                locationManager.removeUpdates(TowerService.this);
+                mRadioEventSampler.stop();
+            }
+        });
+        // no fix is offered once the sampling thread is gone
+        mSamplingThread.quitSafely();
+        try {
+            mSamplingThread.join(SAMPLING_STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // write the queued observations before the db is closed
+        mObservationWriter.shutdown();
+        mIndexThread.interrupt();
+        try {
+            mIndexThread.join(INDEX_STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         mDbAdaper.close();
         Log.d(TAG, "onDestroy() executed");
         //mCellTracker.stop();
-        //stopTraceTimer();
     }
 
     @Override
@@ -99,12 +233,11 @@ public class TowerService extends Service  implements LocationListener{
         }
     }
 
-    //Start listen to Location Changes
+    //Start listen to Location Changes, at the rate of the current sampling profile, on the sampling thread
     public void listenLocationChanges() {
-        locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         try {
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, GPS_MIN_UPDATE_TIME,
-                    GPS_MIN_UPDATE_DISTANCE, this);
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, mSamplingScheduler.getGpsInterval(),
+                    mSamplingScheduler.getGpsDistance(), this, mSamplingThread.getLooper());
         } catch (SecurityException e) {
             Log.d(TAG,"GPS location provider doesnt exist");
         }
@@ -130,8 +263,8 @@ public class TowerService extends Service  implements LocationListener{
     @Override
     public void onLocationChanged(Location location) {
         mCurrentLocation = location;
-        Toast toast=Toast.makeText(getApplicationContext(),String.valueOf(location.getLatitude() + "  " + String.valueOf(location.getLongitude())), Toast.LENGTH_SHORT);
-        toast.show();
+        showToast(String.valueOf(location.getLatitude() + "  " + String.valueOf(location.getLongitude())));
+        mSamplingScheduler.onLocationChanged(location);
         //recordNetworkCellOnLocation(location);
         recordDataInDB(location);
     }
@@ -151,33 +284,23 @@ public class TowerService extends Service  implements LocationListener{
         Log.d("Latitude", "status");
     }
 
-    // we define a runnable, is it useful in the future?
-    private final Runnable tracePhoneLocationRunnable = new Runnable() {
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
         @Override
-        public void run() {
-            //Log.d("trace some thing in service...","........");
-            //
-            //record the cell info to the table CELLSIGNALHISTROY
-            //
-            timerHandler.postDelayed(this, 5000);
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level < 0 || scale <= 0) return;
+            boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            mSamplingScheduler.onBatteryChanged(level * 100 / scale, charging);
         }
     };
 
-    public void startTraceTimer() {
-        stopTraceTimer();
-        timerHandler.postDelayed(tracePhoneLocationRunnable, 5000);
-    }
-
-    public void stopTraceTimer() {
-        timerHandler.removeCallbacks(tracePhoneLocationRunnable);
-    }
-
-    final PhoneStateListener phoneStatelistener = new PhoneStateListener() {
+    private class SamplingPhoneStateListener extends PhoneStateListener {
         private void handle() {
         }
         @Override
         public void onServiceStateChanged(ServiceState serviceState) {
-            handle();
+            mRadioEventSampler.onServiceStateChanged();
         }
         @Override
         public void onDataConnectionStateChanged(int state) {
@@ -189,11 +312,11 @@ public class TowerService extends Service  implements LocationListener{
         }
         @Override
         public void onSignalStrengthsChanged(SignalStrength signalStrength) {
-            handle();
+            mRadioEventSampler.onSignalStrengthsChanged();
         }
         @Override
         public void onCellInfoChanged(List<CellInfo> cellInfo) {
-            handle();
+            mRadioEventSampler.onCellInfoChanged(cellInfo);
         }
         @Override
         public void onCellLocationChanged(CellLocation location) {
@@ -217,8 +340,7 @@ public class TowerService extends Service  implements LocationListener{
                         if (mCurrentCell.getCid() != gsmCellLocation.getCid() || mCurrentCell.getLac() != gsmCellLocation.getLac()) {
                             //recordNetworkCellOnLocation(mCurrentLocation);
                             recordDataInDB(mCurrentLocation);
-                            Toast toast=Toast.makeText(getApplicationContext(),"Found cell by onCellLocationChanged", Toast.LENGTH_SHORT);
-                            toast.show();
+                            showToast("Found cell by onCellLocationChanged");
                         }
                     }
                     break;
@@ -236,30 +358,79 @@ public class TowerService extends Service  implements LocationListener{
             }
         }
 
-    };
+    }
 
     // some get methods
     public CellTracker getCellTracker() {
         return mCellTracker;
     }
-    public Cell getCell() {
-        //return
-        List<Cell> allCellList = mCellTracker.getAllCells();
-        if (allCellList!=null && allCellList.size()>0) {
-            return allCellList.get(0);
-        }
-        else  {
-            return  mCellTracker.getDevice().mCell;
-        }
-    }
 
     // The DBHelper should be singleton across a app
     public DataBaseAdapter getSingletonDbAdapater() {
         return mDbAdaper;
     }
 
+    public ObservationWriter getObservationWriter() {
+        return mObservationWriter;
+    }
+
+    public StationTileCache<Tower> getDetectedTowerCache() {
+        return mDetectedTowerCache;
+    }
+
+    public SignalHeatmap getSignalHeatmap() {
+        return mSignalHeatmap;
+    }
+
+    public RadioEventSampler getRadioEventSampler() {
+        return mRadioEventSampler;
+    }
+
+    public SamplingScheduler getSamplingScheduler() {
+        return mSamplingScheduler;
+    }
+
+    // the registered stations in memory, null while loading
+    public RegisteredStationIndex getRegisteredStationIndex() {
+        return mRegisteredStationIndex;
+    }
+
+    // the serving cell of the last sample, no telephony call
+    public ServingCellState getServingCellState() {
+        return mServingCellState;
+    }
+
+    private void publishServingCell(CellSnapshot snapshot) {
+        // the radio events and the fixes refresh the snapshots on their own threads, the rows are read
+        // under the lock of the refreshes
+        synchronized (mCellTracker) {
+            if (!snapshot.hasServingCell()) return;
+            ServingCellState state = mServingCellState;
+            if (state.isValid() && state.sameAs(snapshot)) return;
+            mServingCellState = new ServingCellState(state.getVersion() + 1, snapshot.getTime(),
+                    snapshot.getCid(0), snapshot.getLac(0), snapshot.getMcc(0), snapshot.getMnc(0),
+                    snapshot.getDbm(0), snapshot.getNetType(0));
+        }
+    }
+
     private int recordNetworkCellOnLocation(Location location) {
         if(location == null) return 0;
+        // get the new cell info, the serving cell and its neighbours
+        CellSnapshot snapshot = mCellTracker.refreshSnapshot();
+        publishServingCell(snapshot);
+        return recordCells(snapshot, location.getTime(), location, false);
+    }
+
+    private boolean isStale(Location location) {
+        long age = SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos();
+        return age > STALE_FIX_INTERVALS * mSamplingScheduler.getGpsInterval() * 1000000L;
+    }
+
+    /**
+     * @param radioOnly the snapshot was not taken at the fix, its cells go to the signal history
+     *                  only and do not move the detected cells and towers
+     */
+    private int recordCells(CellSnapshot snapshot, long time, Location location, boolean radioOnly) {
 
         // get the device info, only for one time
         if (mDevice==null) {
@@ -273,61 +444,39 @@ public class TowerService extends Service  implements LocationListener{
             lastTowerId = mCurrentCell.getTowerId();
             lastCellId = mCurrentCell.getCid();
         }
-        // get the new cell info
-        mCurrentCell = getCell();
-        mCurrentCell.setLon(location.getLongitude());       // gpsd_lon
-        mCurrentCell.setLat(location.getLatitude());        // gpsd_lat
-
-        //insert or update the cell info to the db.
-
-
-        //table CELLSIGNALHISTROY
-        mDbAdaper.insertCellSingalHistory(mCurrentCell,mDevice.getIMEI());
-
-        //table DETECTEDCELLS
-        if (!mDbAdaper.cellInDbiBts(mCurrentCell.getLac(), mCurrentCell.getCid())) {
-            mDbAdaper.insertBTS(mCurrentCell,mDevice.getIMEI());
+        // a pooled fix, the device cell stands in if no cell is visible
+        CellFix fix = mObservationWriter.obtainFix();
+        synchronized (mCellTracker) {
+            fix.set(time, location.getLatitude(), location.getLongitude(), snapshot, mCellTracker.getDevice().mCell, radioOnly);
         }
-        else  {
-            // calculate the Cell's Locationg by below algorithm
-            double maxLat = mDbAdaper.maxLatOfCellArea(mCurrentCell);
-            double minLat = mDbAdaper.minLatOfCellArea(mCurrentCell);
-            double maxLon = mDbAdaper.maxLonOfCellArea(mCurrentCell);
-            double minLon = mDbAdaper.minLonOfCellArea(mCurrentCell);
-            if (maxLat>0 && maxLon>0 && minLat>0 && minLon>0 ) {
-                //LatLng newCellLL = new LatLng((maxLat+minLat)/2, (maxLon+minLon)/2);
-                mCurrentCell.setLat((maxLat+minLat)/2);
-                mCurrentCell.setLon((maxLon+minLon)/2);
-                mDbAdaper.updateBTS(mCurrentCell);
-            }
-        }
-
-        //table DETECTEDTOWERS
-        if (!mDbAdaper.cellRelatedTowerInTable(mCurrentCell)){
-            mDbAdaper.insertCellRelatedTower(mCurrentCell, mDevice.getIMEI());
-        }
-        else {
-            // calculate the Cell's Location by below algorithm
-            double maxLat = mDbAdaper.maxLatOfCellRelatedTowerArea(mCurrentCell);
-            double minLat = mDbAdaper.minLatOfCellRelatedTowerArea(mCurrentCell);
-            double maxLon = mDbAdaper.maxLonOfCellRelatedTowerArea(mCurrentCell);
-            double minLon = mDbAdaper.minLonOfCellRelatedTowerArea(mCurrentCell);
-            if (maxLat>0 && maxLon>0 && minLat>0 && minLon>0 ) {
-                mCurrentCell.setLat((maxLat+minLat)/2);
-                mCurrentCell.setLon((maxLon+minLon)/2);
-                mDbAdaper.updateCellRelatedTower(mCurrentCell);
+        // keep a copy, the fix is recycled once written
+        boolean serving = fix.isServing();
+        if (serving) {
+            if (mCurrentCell == null) {
+                mCurrentCell = new Cell();
             }
+            mCurrentCell.copyFrom(fix.getServingCell());
         }
 
+        //queue the fix, it is written to tables CELLSIGNALHISTROY, DETECTEDCELLS and DETECTEDTOWERS
+        //by the observation writer
+        mObservationWriter.setImei(mDevice.getIMEI());
+        mObservationWriter.offer(fix);
+        // without a registered cell there is no handover to tell
+        if (!serving) return 0;
 
         if(lastTowerId != mCurrentCell.getTowerId()) {
             //切换基站
             //Toast toast1=Toast.makeText(getApplicationContext(),"切换基站！", Toast.LENGTH_SHORT);
             //toast1.show();
-            sendUpdateMapBroadcast();
+            mMapUpdatePending = true;
+            mObservationWriter.requestFlush();
+            // the first cell is not a handover
+            if (lastTowerId != 0) mSamplingScheduler.onCellChanged();
             return 1;
         }
         else if (lastCellId != mCurrentCell.getCid()) {
+            mSamplingScheduler.onCellChanged();
             //Toast toast2=Toast.makeText(getApplicationContext(),"切换蜂窝！", Toast.LENGTH_SHORT);
             //toast2.show();
             return  2;
@@ -344,34 +493,27 @@ public class TowerService extends Service  implements LocationListener{
     }
 
     public void recordDataInDB(Location location) {
-        if (recordAsyncTask != null && recordAsyncTask.getStatus()!=AsyncTask.Status.FINISHED) {
-            // there is a task that not finished, so do nothing, just skip it
-            return;
-        }
-        recordAsyncTask = new RecordAsyncTask();
-        recordAsyncTask.execute(location);
+        showSwitchToast(recordNetworkCellOnLocation(location));
     }
 
-    private class RecordAsyncTask extends AsyncTask<Location, Void, Integer> {
-        @Override
-        protected Integer doInBackground(Location... locations) {
-            Location newLocation = locations[0];
-            return recordNetworkCellOnLocation(newLocation);
+    private void showSwitchToast(int result) {
+        switch (result) {
+            case 1:
+                showToast("切换基站！");
+                break;
+            case 2:
+                showToast("切换蜂窝！");
+                break;
         }
+    }
 
-        @Override
-        protected void onPostExecute(Integer result) {
-            super.onPostExecute(result);
-            switch (result.intValue()) {
-                case 1:
-                    Toast toast1=Toast.makeText(getApplicationContext(),"切换基站！", Toast.LENGTH_SHORT);
-                    toast1.show();
-                    break;
-                case 2:
-                    Toast toast2=Toast.makeText(getApplicationContext(),"切换蜂窝！", Toast.LENGTH_SHORT);
-                    toast2.show();
-                    break;
+    // the toasts of the sampling thread are shown by the main thread
+    private void showToast(final String text) {
+        timerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT).show();
             }
-        }
+        });
     }
 }
@@ -0,0 +1,50 @@
+package com.example.a.tower;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The round trip of CoordinateTransform between WGS-84 and BD-09.
+ */
+public class CoordinateTransformTest {
+    // about a centimeter
+    private static final double ROUND_TRIP_TOLERANCE = 1e-7;
+
+    @Test
+    public void roundTrip_insideChina() throws Exception {
+        Random random = new Random(7);
+        double[] bd = new double[2];
+        double[] wgs = new double[2];
+        for (int i = 0; i < 10000; i++) {
+            double lat = 18 + random.nextDouble() * 35;
+            double lon = 75 + random.nextDouble() * 60;
+            CoordinateTransform.wgs84ToBd09(lat, lon, bd);
+            CoordinateTransform.bd09ToWgs84(bd[0], bd[1], wgs);
+            assertEquals(lat, wgs[0], ROUND_TRIP_TOLERANCE);
+            assertEquals(lon, wgs[1], ROUND_TRIP_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void wgs84ToBd09_shiftsInsideChina() throws Exception {
+        double[] bd = new double[2];
+        // Beijing, BD-09 is some hundred meters north east of WGS-84
+        CoordinateTransform.wgs84ToBd09(39.9, 116.4, bd);
+        assertEquals(39.9 + 0.0074, bd[0], 0.001);
+        assertEquals(116.4 + 0.0125, bd[1], 0.001);
+    }
+
+    @Test
+    public void outsideChina_isNotShifted() throws Exception {
+        double[] out = new double[2];
+        CoordinateTransform.wgs84ToBd09(51.5, -0.12, out);
+        assertEquals(51.5, out[0], 0);
+        assertEquals(-0.12, out[1], 0);
+        CoordinateTransform.bd09ToWgs84(51.5, -0.12, out);
+        assertEquals(51.5, out[0], 0);
+        assertEquals(-0.12, out[1], 0);
+    }
+}
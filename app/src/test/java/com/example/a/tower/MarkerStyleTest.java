@@ -0,0 +1,56 @@
+package com.example.a.tower;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * MarkerStyle.classify() on the NETNAME and TECNAME values of the registered stations.
+ */
+public class MarkerStyleTest {
+
+    @Test
+    public void classify_operatorAndTechnology() throws Exception {
+        assertEquals(MarkerStyle.MOBILE_LTE, MarkerStyle.classify("湖北移动TD-LTE系统", "TD-LTE"));
+        assertEquals(MarkerStyle.MOBILE_GSM, MarkerStyle.classify("湖北移动GSM系统", "GSM"));
+        assertEquals(MarkerStyle.UNICOM_WCDMA, MarkerStyle.classify("湖北联通WCDMA系统", "WCDMA"));
+        assertEquals(MarkerStyle.UNICOM_GSM, MarkerStyle.classify("湖北联通GSM/GPRS系统/1800MHz基站", "GSM"));
+        assertEquals(MarkerStyle.TELECOM_CDMA, MarkerStyle.classify("湖北电信CDMA系统", "CDMA2000"));
+        assertEquals(MarkerStyle.TELECOM_LTE, MarkerStyle.classify("湖北电信LTE系统", "FDD-LTE"));
+    }
+
+    @Test
+    public void classify_firstMatchingTechnologyWins() throws Exception {
+        // SCDMA is checked before CDMA, WCDMA before CDMA
+        assertEquals(MarkerStyle.MOBILE_SCDMA, MarkerStyle.classify("中国移动", "TD-SCDMA"));
+        assertEquals(MarkerStyle.UNICOM_SCDMA, MarkerStyle.classify("中国联通", "TD-SCDMA"));
+        assertEquals(MarkerStyle.UNICOM_WCDMA, MarkerStyle.classify("中国联通", "WCDMA"));
+        assertEquals(MarkerStyle.TELECOM_SCDMA, MarkerStyle.classify("中国电信", "TD-SCDMA"));
+        assertEquals(MarkerStyle.TELECOM_WCDMA, MarkerStyle.classify("中国电信", "WCDMA"));
+        // a name with two technologies takes the first of the operator's order
+        assertEquals(MarkerStyle.UNICOM_WCDMA, MarkerStyle.classify("中国联通", "GSM/WCDMA"));
+        assertEquals(MarkerStyle.TELECOM_GSM, MarkerStyle.classify("中国电信", "GSM/LTE"));
+    }
+
+    @Test
+    public void classify_unknown() throws Exception {
+        assertEquals(MarkerStyle.UNKNOWN, MarkerStyle.classify(null, "LTE"));
+        assertEquals(MarkerStyle.UNKNOWN, MarkerStyle.classify("中国移动", null));
+        assertEquals(MarkerStyle.UNKNOWN, MarkerStyle.classify("湖北广电", "LTE"));
+        // no CDMA for the mobile operator
+        assertEquals(MarkerStyle.UNKNOWN, MarkerStyle.classify("中国移动", "CDMA2000"));
+        assertEquals(MarkerStyle.UNKNOWN, MarkerStyle.classify("", ""));
+    }
+
+    @Test
+    public void classify_stylesFitTheIconTable() throws Exception {
+        String[] netNames = {"移动", "联通", "电信", "其他"};
+        String[] tecNames = {"LTE", "GSM", "SCDMA", "WCDMA", "CDMA", "?"};
+        for (String netName : netNames) {
+            for (String tecName : tecNames) {
+                int style = MarkerStyle.classify(netName, tecName);
+                assertTrue(style >= 0 && style < MarkerStyle.COUNT);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.a.tower;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * RegisteredStationIndex.query() against a linear scan of the same stations.
+ */
+public class RegisteredStationIndexTest {
+    private static final int STATIONS = 20000;
+    private static final int QUERIES = 500;
+
+    @Test
+    public void query_matchesLinearScan() throws Exception {
+        Random random = new Random(42);
+        double[] lat = new double[STATIONS];
+        double[] lon = new double[STATIONS];
+        for (int i = 0; i < STATIONS; i++) {
+            if (i > 0 && random.nextInt(4) == 0) {
+                // a station on the position of an earlier one
+                int other = random.nextInt(i);
+                lat[i] = lat[other];
+                lon[i] = lon[other];
+            } else {
+                // on a coarse grid, many stations share a latitude or a longitude
+                lat[i] = 30 + random.nextInt(1000) * 0.001;
+                lon[i] = 120 + random.nextInt(1000) * 0.001;
+            }
+        }
+        RegisteredStationIndex index = RegisteredStationIndex.of(lat, lon);
+        assertEquals(STATIONS, index.size());
+
+        int[] out = new int[STATIONS];
+        for (int q = 0; q < QUERIES; q++) {
+            // the bounds fall on the grid too, on the stations of the edges
+            double south = 30 + random.nextInt(1000) * 0.001;
+            double north = south + random.nextInt(300) * 0.001;
+            double west = 120 + random.nextInt(1000) * 0.001;
+            double east = west + random.nextInt(300) * 0.001;
+
+            int found = index.query(south, north, west, east, out);
+            int[] ids = new int[found];
+            for (int i = 0; i < found; i++) {
+                int id = index.getStationId(out[i]);
+                assertEquals(lat[id], index.getLat(out[i]), 0);
+                assertEquals(lon[id], index.getLon(out[i]), 0);
+                ids[i] = id;
+            }
+            Arrays.sort(ids);
+            assertArrayEquals(scan(lat, lon, south, north, west, east), ids);
+        }
+    }
+
+    @Test
+    public void query_countsHitsBeyondTheBuffer() throws Exception {
+        double[] lat = new double[100];
+        double[] lon = new double[100];
+        Arrays.fill(lat, 31.5);
+        Arrays.fill(lon, 121.5);
+        RegisteredStationIndex index = RegisteredStationIndex.of(lat, lon);
+
+        int[] out = new int[10];
+        assertEquals(100, index.query(31, 32, 121, 122, out));
+        // strictly inside, the stations on the edge are not
+        assertEquals(0, index.query(31.5, 32, 121, 122, out));
+    }
+
+    @Test
+    public void query_emptyIndex() throws Exception {
+        RegisteredStationIndex index = RegisteredStationIndex.of(new double[0], new double[0]);
+        assertEquals(0, index.query(-90, 90, -180, 180, new int[1]));
+    }
+
+    // the ids of the stations strictly inside the bounds, ascending
+    private static int[] scan(double[] lat, double[] lon, double south, double north, double west, double east) {
+        int[] ids = new int[lat.length];
+        int count = 0;
+        for (int i = 0; i < lat.length; i++) {
+            if (lat[i] > south && lat[i] < north && lon[i] > west && lon[i] < east) {
+                ids[count++] = i;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
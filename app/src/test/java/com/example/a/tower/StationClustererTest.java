@@ -0,0 +1,110 @@
+package com.example.a.tower;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The clusters of StationClusterer on every zoom level.
+ */
+public class StationClustererTest {
+    private static final int STATIONS = 5000;
+
+    @Test
+    public void everyLevel_coversEveryStationOnce() throws Exception {
+        StationClusterer clusterer = randomClusterer(new Random(3));
+        assertEquals(STATIONS, clusterer.getItemCount());
+        Set<Long> keys = new HashSet<>();
+        int previous = Integer.MAX_VALUE;
+        for (int zoom = StationClusterer.MIN_ZOOM; zoom <= StationClusterer.MAX_ZOOM; zoom++) {
+            List<StationClusterer.Cluster> clusters = clusterer.getClusters(zoom);
+            int count = 0;
+            for (StationClusterer.Cluster cluster : clusters) {
+                assertEquals(zoom, cluster.zoom);
+                assertTrue(cluster.count > 0);
+                assertTrue(cluster.item >= 0 && cluster.item < STATIONS);
+                // negative, apart from the STATIONID keys of the markers, and unique among all the levels
+                assertTrue(cluster.key < 0);
+                assertTrue(keys.add(cluster.key));
+                count += cluster.count;
+            }
+            assertEquals(STATIONS, count);
+            // a finer level never has fewer clusters
+            assertTrue(previous == Integer.MAX_VALUE || clusters.size() >= previous);
+            previous = clusters.size();
+        }
+    }
+
+    @Test
+    public void cluster_meanPositionAndFirstItem() throws Exception {
+        // two stations some 30 m apart and one far away
+        double[] lat = {30.5, 30.5002, 39.9};
+        double[] lon = {114.3, 114.3002, 116.4};
+        StationClusterer clusterer = new StationClusterer(lat, lon, lat.length);
+
+        List<StationClusterer.Cluster> coarse = clusterer.getClusters(StationClusterer.MIN_ZOOM + 5);
+        assertEquals(2, coarse.size());
+        for (StationClusterer.Cluster cluster : coarse) {
+            if (cluster.isSingle()) {
+                assertEquals(2, cluster.item);
+                assertEquals(39.9, cluster.lat, 1e-9);
+                assertEquals(116.4, cluster.lon, 1e-9);
+            } else {
+                assertEquals(2, cluster.count);
+                assertEquals(0, cluster.item);
+                assertEquals(30.5001, cluster.lat, 1e-9);
+                assertEquals(114.3001, cluster.lon, 1e-9);
+            }
+        }
+        // all apart at the finest level
+        assertEquals(3, clusterer.getClusters(StationClusterer.MAX_ZOOM).size());
+    }
+
+    @Test
+    public void getClusters_clampsTheZoom() throws Exception {
+        StationClusterer clusterer = randomClusterer(new Random(5));
+        assertSame(clusterer.getClusters(StationClusterer.MIN_ZOOM), clusterer.getClusters(0));
+        assertSame(clusterer.getClusters(StationClusterer.MAX_ZOOM), clusterer.getClusters(StationClusterer.MAX_ZOOM + 3));
+    }
+
+    @Test
+    public void getBoundedClusters_fallsBackToACoarserLevel() throws Exception {
+        StationClusterer clusterer = randomClusterer(new Random(9));
+        int max = 50;
+        for (int zoom = StationClusterer.MIN_ZOOM; zoom <= StationClusterer.MAX_ZOOM; zoom++) {
+            List<StationClusterer.Cluster> clusters = clusterer.getBoundedClusters(zoom + 0.5f, max);
+            int level = clusters.get(0).zoom;
+            assertTrue(level <= zoom);
+            assertTrue(clusters.size() <= max || level == StationClusterer.MIN_ZOOM);
+            if (level < zoom) {
+                // the next finer level was over the bound
+                assertTrue(clusterer.getClusters(level + 1).size() > max);
+            } else {
+                assertSame(clusterer.getClusters(zoom), clusters);
+            }
+        }
+    }
+
+    @Test
+    public void noStations() throws Exception {
+        StationClusterer clusterer = new StationClusterer(new double[0], new double[0], 0);
+        assertEquals(0, clusterer.getClusters(StationClusterer.MAX_ZOOM).size());
+        assertEquals(0, clusterer.getBoundedClusters(10, 1).size());
+    }
+
+    // stations around Wuhan, denser in the center
+    private static StationClusterer randomClusterer(Random random) {
+        double[] lat = new double[STATIONS];
+        double[] lon = new double[STATIONS];
+        for (int i = 0; i < STATIONS; i++) {
+            lat[i] = 30.5 + random.nextGaussian() * 0.2;
+            lon[i] = 114.3 + random.nextGaussian() * 0.2;
+        }
+        return new StationClusterer(lat, lon, STATIONS);
+    }
+}